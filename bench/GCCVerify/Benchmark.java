@@ -0,0 +1,196 @@
+/**
+ * Benchmark.java is a small microbenchmark harness for the verification hot
+ * paths. Each case is warmed up, then timed over several fixed-length
+ * iterations, reporting the mean time per operation with its error and the
+ * bytes allocated per operation, much like JMH's average time mode with its
+ * GC profiler.
+ *
+ * Contains the Benchmark class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import com.google.gson.stream.JsonWriter;
+
+public class Benchmark {
+
+	public static final int DEFAULT_WARMUP_ITERATIONS = 3;
+	public static final int DEFAULT_ITERATIONS = 5;
+	public static final int DEFAULT_ITERATION_MILLIS = 1000;
+
+	//Results are folded in here so the JIT can't drop the work that produced them
+	private static volatile long sink;
+
+	private final int warmupIterations;
+	private final int iterations;
+	private final long iterationNanos;
+	private final List<Result> results = new ArrayList<Result>();
+
+	public Benchmark(int warmupIterations, int iterations, int iterationMillis) {
+		this.warmupIterations = warmupIterations;
+		this.iterations = iterations;
+		iterationNanos = iterationMillis * 1000000L;
+	}
+
+	//One call of the code under test. Return something derived from the work (e.g. a length or hash).
+	public static interface Operation {
+		long run() throws Exception;
+	}
+
+	//Builds the operation and its data for a scale, outside the timed part
+	public static interface Fixture {
+		Operation setUp(int scale) throws Exception;
+	}
+
+	public Result run(String name, int scale, Fixture fixture) throws Exception {
+		Operation operation = fixture.setUp(scale);
+		//Calls per timing check, grown until a batch takes long enough that reading the clock is noise
+		int batch = 1;
+		for ( int i = 0; i < warmupIterations; i++ )
+			batch = iterate(operation, batch).batch;
+
+		double[] nanosPerOp = new double[iterations];
+		long totalOps = 0;
+		long totalBytes = 0;
+		for ( int i = 0; i < iterations; i++ ) {
+			Iteration iteration = iterate(operation, batch);
+			batch = iteration.batch;
+			nanosPerOp[i] = (double) iteration.nanos / iteration.ops;
+			totalOps += iteration.ops;
+			totalBytes += iteration.bytes;
+		}
+
+		double mean = 0;
+		for ( double n : nanosPerOp )
+			mean += n;
+		mean /= iterations;
+		double variance = 0;
+		for ( double n : nanosPerOp )
+			variance += (n - mean) * (n - mean);
+		double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+		long bytesPerOp = totalBytes < 0 ? -1 : totalBytes / totalOps;
+		Result result = new Result(name, scale, mean, error, bytesPerOp, totalOps);
+		results.add(result);
+		System.out.printf("%-28s %5dx %14.1f +- %10.1f ns/op %12s B/op%n", name, scale, mean, error, bytesPerOp < 0 ? "n/a" : Long.toString(bytesPerOp));
+		return result;
+	}
+
+	private Iteration iterate(Operation operation, int batch) throws Exception {
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		long elapsed = 0;
+		long ops = 0;
+		long folded = 0;
+		while ( elapsed < iterationNanos ) {
+			long batchStart = System.nanoTime();
+			for ( int i = 0; i < batch; i++ )
+				folded += operation.run();
+			ops += batch;
+			long batchNanos = System.nanoTime() - batchStart;
+			if ( batchNanos < 1000000 && batch < Integer.MAX_VALUE / 2 )
+				batch *= 2;
+			elapsed = System.nanoTime() - start;
+		}
+		long allocatedAfter = allocatedBytes();
+		sink += folded;
+		return new Iteration(ops, elapsed, allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore, batch);
+	}
+
+	//Bytes allocated by this thread so far, or -1 if the JVM can't tell
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if ( threads instanceof com.sun.management.ThreadMXBean ) {
+			com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+			if ( hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled() )
+				return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	public List<Result> results() {
+		return results;
+	}
+
+	//All results as one JSON document, with enough about the JVM to tell whether two files are comparable
+	public void writeJson(Writer out) throws IOException {
+		JsonWriter writer = new JsonWriter(out);
+		writer.setIndent("  ");
+		writer.beginObject();
+		writer.name("java_version").value(System.getProperty("java.version"));
+		writer.name("vm").value(System.getProperty("java.vm.name"));
+		writer.name("processors").value(Runtime.getRuntime().availableProcessors());
+		writer.name("warmup_iterations").value(warmupIterations);
+		writer.name("iterations").value(iterations);
+		writer.name("iteration_ms").value(iterationNanos / 1000000);
+		writer.name("results");
+		writer.beginArray();
+		for ( Result result : results ) {
+			writer.beginObject();
+			writer.name("benchmark").value(result.name);
+			writer.name("scale").value(result.scale);
+			writer.name("ns_per_op").value(result.nanosPerOp);
+			writer.name("error_ns").value(result.error);
+			writer.name("bytes_per_op").value(result.bytesPerOp);
+			writer.name("ops").value(result.ops);
+			writer.endObject();
+		}
+		writer.endArray();
+		writer.endObject();
+		writer.flush();
+	}
+
+	private static class Iteration {
+		final long ops;
+		final long nanos;
+		final long bytes;
+		final int batch;
+
+		Iteration(long ops, long nanos, long bytes, int batch) {
+			this.ops = ops;
+			this.nanos = nanos;
+			this.bytes = bytes;
+			this.batch = batch;
+		}
+	}
+
+	public static class Result {
+		public final String name;
+		public final int scale;
+		public final double nanosPerOp;
+		public final double error;
+		//-1 if allocation can't be measured on this JVM
+		public final long bytesPerOp;
+		public final long ops;
+
+		Result(String name, int scale, double nanosPerOp, double error, long bytesPerOp, long ops) {
+			this.name = name;
+			this.scale = scale;
+			this.nanosPerOp = nanosPerOp;
+			this.error = error;
+			this.bytesPerOp = bytesPerOp;
+			this.ops = ops;
+		}
+	}
+
+}
@@ -0,0 +1,249 @@
+/**
+ * HotPathBenchmarks.java times the parts of a verification that run on the
+ * station itself rather than waiting on the controller: hex image parsing and
+ * checksums, library image hashing, manifest and parameter decoding, the mod
+ * validation loop and its report rendering. Inputs are synthetic, at multiples
+ * of the size of today's build/lib contents, so the numbers don't depend on
+ * what happens to be in the library.
+ *
+ * Contains the HotPathBenchmarks class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import com.google.gson.stream.JsonWriter;
+
+public class HotPathBenchmarks {
+
+	//Today's build/lib: one 14634 byte image in 16 byte records, and a manifest with 5 mods of 1-4 values each
+	private static final int IMAGE_BYTES = 14634;
+	private static final int RECORD_LENGTH = 16;
+	private static final int MODS = 5;
+	private static final int VALUES_PER_MOD = 3;
+	private static final int IMAGES = 1;
+	private static final int[] DEFAULT_SCALES = {1, 10, 100};
+
+	private static final Map<String, Benchmark.Fixture> benchmarks = new LinkedHashMap<String, Benchmark.Fixture>();
+
+	static {
+		//Intel hex decoding, including every record's checksum
+		benchmarks.put("hex.parse", scale -> {
+			final ByteBuffer hex = ByteBuffer.wrap(hexImage(IMAGE_BYTES * scale).getBytes(StandardCharsets.US_ASCII));
+			return () -> HexImage.parse(hex.duplicate()).size();
+		});
+		//The checks the library sync makes: a full SHA-256 of the image, and the indexed lookup when it hasn't changed
+		benchmarks.put("hash.sha256", scale -> {
+			final Path path = tempFile(hexImage(IMAGE_BYTES * scale));
+			return () -> HashIndex.sha256(path).length();
+		});
+		benchmarks.put("hash.verifyLibImage", scale -> {
+			final Path path = tempFile(hexImage(IMAGE_BYTES * scale));
+			final String hash = HashIndex.sha256(path);
+			return () -> Verifier.verifyLibFirmwareImage(path, hash) ? 1 : 0;
+		});
+		//A SHA-256 digest is 32 bytes
+		benchmarks.put("bytesToHex", scale -> {
+			final byte[] bytes = new byte[32 * scale];
+			new Random(scale).nextBytes(bytes);
+			return () -> Verifier.bytesToHex(bytes).length();
+		});
+		benchmarks.put("manifest.load", scale -> {
+			final String json = manifestJson(MODS * scale, IMAGES * scale);
+			return () -> Manifest.load(json).timestamp;
+		});
+		benchmarks.put("params.parse", scale -> {
+			final String json = paramsJson(MODS * scale);
+			return () -> JsonBinder.readFirmwareParams(json).mods.length;
+		});
+		//The validation loop in verifyParams, which only records what it found
+		benchmarks.put("mods.check", scale -> {
+			final ManifestRules rules = Manifest.load(manifestJson(MODS * scale, IMAGES * scale)).rules;
+			final Verifier.FirmwareMod[] mods = JsonBinder.readFirmwareParams(paramsJson(MODS * scale)).mods;
+			return () -> Verifier.checkMods(mods, rules).mods.size();
+		});
+		//Rendering the checked mods as the console's box-art report, which only happens when someone reads it
+		benchmarks.put("mods.render", scale -> {
+			final ManifestRules rules = Manifest.load(manifestJson(MODS * scale, IMAGES * scale)).rules;
+			final Verifier.VerifyParamsResult result = Verifier.checkMods(JsonBinder.readFirmwareParams(paramsJson(MODS * scale)).mods, rules);
+			return () -> ResultRenderer.text(result).length();
+		});
+	}
+
+	//Usage: HotPathBenchmarks [-w warmup iterations] [-i iterations] [-t iteration ms] [-s scales] [-o results.json] [name filter...]
+	public static void main(String[] args) throws Exception {
+		int warmup = Benchmark.DEFAULT_WARMUP_ITERATIONS;
+		int iterations = Benchmark.DEFAULT_ITERATIONS;
+		int iterationMillis = Benchmark.DEFAULT_ITERATION_MILLIS;
+		int[] scales = DEFAULT_SCALES;
+		String output = null;
+		List<String> filters = new ArrayList<String>();
+		for ( int a = 0; a < args.length; a++ ) {
+			String arg = args[a];
+			if ( arg.startsWith("-") && a + 1 >= args.length ) {
+				System.out.printf("ERROR: %s requires a value.%n", arg);
+				System.exit(2);
+			}
+			if ( arg.equals("-w") )
+				warmup = Integer.parseInt(args[++a]);
+			else if ( arg.equals("-i") )
+				iterations = Integer.parseInt(args[++a]);
+			else if ( arg.equals("-t") )
+				iterationMillis = Integer.parseInt(args[++a]);
+			else if ( arg.equals("-o") )
+				output = args[++a];
+			else if ( arg.equals("-s") ) {
+				String[] parts = args[++a].split(",");
+				scales = new int[parts.length];
+				for ( int i = 0; i < parts.length; i++ )
+					scales[i] = Integer.parseInt(parts[i].trim());
+			}
+			else
+				filters.add(arg);
+		}
+
+		Benchmark benchmark = new Benchmark(warmup, iterations, iterationMillis);
+		System.out.printf("%d warmup and %d measured iterations of %dms per benchmark%n%n", warmup, iterations, iterationMillis);
+		for ( Map.Entry<String, Benchmark.Fixture> entry : benchmarks.entrySet() ) {
+			if ( !matches(entry.getKey(), filters) )
+				continue;
+			for ( int scale : scales )
+				benchmark.run(entry.getKey(), scale, entry.getValue());
+		}
+
+		if ( output != null ) {
+			try ( Writer writer = Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8) ) {
+				benchmark.writeJson(writer);
+			}
+			System.out.printf("%nResults written to %s%n", output);
+		}
+	}
+
+	private static boolean matches(String name, List<String> filters) {
+		if ( filters.isEmpty() )
+			return true;
+		for ( String filter : filters ) {
+			if ( name.contains(filter) )
+				return true;
+		}
+		return false;
+	}
+
+	private static Path tempFile(String contents) throws IOException {
+		Path path = Files.createTempFile("GCCVerify-bench", ".hex");
+		path.toFile().deleteOnExit();
+		Files.write(path, contents.getBytes(StandardCharsets.US_ASCII));
+		return path;
+	}
+
+	//Intel hex for length bytes of pseudo-random data in 16 byte records, with extended linear address records every 64KB
+	static String hexImage(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		StringBuilder hex = new StringBuilder(length * 11 / 4 + 64);
+		for ( int address = 0; address < length; address += RECORD_LENGTH ) {
+			if ( address > 0 && (address & 0xFFFF) == 0 )
+				appendRecord(hex, 0, HexImage.EXTENDED_LINEAR_ADDRESS, new byte[]{(byte) (address >>> 24), (byte) (address >>> 16)}, 0, 2);
+			appendRecord(hex, address & 0xFFFF, HexImage.DATA, data, address, Math.min(RECORD_LENGTH, length - address));
+		}
+		appendRecord(hex, 0, HexImage.END_OF_FILE, data, 0, 0);
+		return hex.toString();
+	}
+
+	private static void appendRecord(StringBuilder hex, int offset, int type, byte[] data, int start, int count) {
+		int sum = count + (offset >> 8) + (offset & 0xFF) + type;
+		hex.append(':').append(String.format("%02X%04X%02X", count, offset, type));
+		for ( int i = start; i < start + count; i++ ) {
+			sum += data[i] & 0xFF;
+			hex.append(String.format("%02X", data[i] & 0xFF));
+		}
+		hex.append(String.format("%02X", -sum & 0xFF)).append("\r\n");
+	}
+
+	//A manifest with mods "mod<n>" of values "value<n>" allowing 0-100, and permitted images "image<n>"
+	static String manifestJson(int mods, int images) throws IOException {
+		StringWriter out = new StringWriter();
+		JsonWriter writer = new JsonWriter(out);
+		writer.beginObject();
+		writer.name("timestamp").value(1499550733L);
+		writer.name("modSpecs").beginArray();
+		for ( int m = 0; m < mods; m++ ) {
+			writer.beginObject();
+			writer.name("name").value("mod" + m);
+			writer.name("permitted").value(true);
+			writer.name("valueSpecs").beginArray();
+			for ( int v = 0; v < VALUES_PER_MOD; v++ )
+				writer.beginObject().name("name").value("value" + v).name("maxVal").value(100).name("minVal").value(0).endObject();
+			writer.endArray();
+			writer.endObject();
+		}
+		writer.endArray();
+		writer.name("firmwareImages").beginArray();
+		Random random = new Random(images);
+		for ( int i = 0; i < images; i++ ) {
+			byte[] hash = new byte[32];
+			random.nextBytes(hash);
+			writer.beginObject();
+			writer.name("name").value("image" + i);
+			writer.name("permitted").value(true);
+			writer.name("hash").value(Verifier.bytesToHex(hash));
+			writer.name("url").value("https://example.com/image" + i + ".hex");
+			writer.endObject();
+		}
+		writer.endArray();
+		writer.endObject();
+		writer.close();
+		return out.toString();
+	}
+
+	//Parameters reporting every manifest mod enabled with in-range values, so validation runs to the end
+	static String paramsJson(int mods) throws IOException {
+		StringWriter out = new StringWriter();
+		JsonWriter writer = new JsonWriter(out);
+		writer.beginObject();
+		writer.name("name").value("image");
+		writer.name("major_version").value(0);
+		writer.name("minor_version").value(0);
+		writer.name("mods").beginArray();
+		for ( int m = 0; m < mods; m++ ) {
+			writer.beginObject();
+			writer.name("name").value("mod" + m);
+			writer.name("enabled").value(true);
+			writer.name("values").beginArray();
+			for ( int v = 0; v < VALUES_PER_MOD; v++ )
+				writer.beginObject().name("name").value("value" + v).name("value").value(v * 10).endObject();
+			writer.endArray();
+			writer.endObject();
+		}
+		writer.endArray();
+		writer.endObject();
+		writer.close();
+		return out.toString();
+	}
+
+}
@@ -0,0 +1,101 @@
+/**
+ * BatchReport.java writes one machine-readable record per verified controller
+ * for batch mode, as either JSON lines or CSV, so results can be consumed by
+ * scripts and pipelines instead of read off the console. It can also write
+ * the console's box-art report or one compact line per controller.
+ *
+ * Contains the BatchReport class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.io.*;
+import com.google.gson.stream.JsonWriter;
+
+public class BatchReport {
+
+	public static enum Format {JSON, CSV, TEXT, COMPACT};
+
+	private final PrintStream out;
+	private final Format format;
+	private boolean wroteHeader = false;
+
+	public BatchReport(PrintStream out, Format format) {
+		this.out = out;
+		this.format = format;
+	}
+
+	public synchronized void write(Station.StationResult result) throws IOException {
+		if ( format == Format.CSV )
+			writeCsv(result);
+		else if ( format == Format.TEXT )
+			out.print(ResultRenderer.text(result));
+		else if ( format == Format.COMPACT )
+			out.println(ResultRenderer.compact(result));
+		else
+			writeJson(result);
+		out.flush();
+	}
+
+	//One compact object per line (JSON lines), so a reader can process results as they arrive
+	private void writeJson(Station.StationResult result) throws IOException {
+		StringWriter buffer = new StringWriter();
+		JsonWriter writer = new JsonWriter(buffer);
+		writer.beginObject();
+		ResultRenderer.writeFields(writer, result);
+		writer.endObject();
+		writer.close();
+		out.println(buffer.toString());
+	}
+
+	private void writeCsv(Station.StationResult result) {
+		if ( !wroteHeader ) {
+			StringBuilder header = new StringBuilder("port,platform,firmware,params_verified,firmware_verified,passed");
+			for ( Verifier.Phase phase : Verifier.Phase.values() )
+				header.append(',').append(phase.name().toLowerCase()).append("_ms");
+			header.append(",total_ms,image_verdict,mismatch_offset");
+			out.println(header);
+			wroteHeader = true;
+		}
+		StringBuilder line = new StringBuilder();
+		line.append(csvField(result.portName)).append(',')
+			.append(result.platform.name()).append(',')
+			.append(csvField(result.firmwareName)).append(',')
+			.append(result.paramResult.succeeded).append(',')
+			.append(result.imageResult.matched()).append(',')
+			.append(result.passed());
+		for ( Verifier.Phase phase : Verifier.Phase.values() )
+			line.append(',').append(result.phaseMillis(phase));
+		line.append(',').append(Math.round(result.elapsed * 1000))
+			.append(',').append(result.imageResult.verdict.name().toLowerCase())
+			.append(',').append(result.imageResult.mismatchOffset >= 0 ? Integer.toString(result.imageResult.mismatchOffset) : "");
+		out.println(line);
+	}
+
+	//Quotes a field if it contains anything CSV treats specially
+	private static String csvField(String field) {
+		if ( field == null )
+			return "";
+		if ( field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0 )
+			return field;
+		return "\"" + field.replace("\"", "\"\"") + "\"";
+	}
+
+}
@@ -0,0 +1,100 @@
+/**
+ * BootTimer.java keeps per-platform samples of how long a controller takes
+ * to answer "GCCVerify" after a reset, and uses the fastest to decide how long
+ * to stay quiet before probing. The quiet period starts at the legacy fixed
+ * wait and converges on the shortest boot time seen recently, while the
+ * overall probe window never exceeds what the fixed sleeps used to allow.
+ *
+ * Contains the BootTimer class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+public class BootTimer {
+
+	//Interval between "GCCVerify" probes once the quiet period is over
+	public static final int PROBE_INTERVAL = 50;
+	//Legacy timing: two 250ms resets, a 1s bootloader wait, then four probes 250ms apart
+	public static final int LEGACY_QUIET_PERIOD = 1500;
+	public static final int MAX_WAIT = 2500;
+	//Leaving the bootloader starts the application straight away, and firmware may only listen for a second after it starts,
+	//so with no history the probes start immediately rather than after the legacy wait
+	public static final int BOOTLOADER_QUIET_PERIOD = 0;
+	//Margin kept below the fastest boot seen so boot time jitter doesn't cost a probe round
+	private static final int GUARD = 100;
+	private static final int SAMPLES = 16;
+
+	private static final Map<Verifier.Platform, BootTimer> timers = new EnumMap<Verifier.Platform, BootTimer>(Verifier.Platform.class);
+	private static final Map<Verifier.Platform, BootTimer> bootloaderTimers = new EnumMap<Verifier.Platform, BootTimer>(Verifier.Platform.class);
+
+	private final long initialQuietPeriod;
+	private final long[] samples = new long[SAMPLES];
+	private int count = 0;
+	private int next = 0;
+
+	public static synchronized BootTimer forPlatform(Verifier.Platform platform) {
+		return timer(timers, platform, LEGACY_QUIET_PERIOD);
+	}
+
+	//Boot times measured from leaving the bootloader rather than from a reset, which skips the bootloader's own timeout
+	public static synchronized BootTimer afterBootloader(Verifier.Platform platform) {
+		return timer(bootloaderTimers, platform, BOOTLOADER_QUIET_PERIOD);
+	}
+
+	private static BootTimer timer(Map<Verifier.Platform, BootTimer> timers, Verifier.Platform platform, long initialQuietPeriod) {
+		BootTimer timer = timers.get(platform);
+		if ( timer == null ) {
+			timer = new BootTimer(initialQuietPeriod);
+			timers.put(platform, timer);
+		}
+		return timer;
+	}
+
+	private BootTimer(long initialQuietPeriod) {
+		this.initialQuietPeriod = initialQuietPeriod;
+	}
+
+	//How long to wait after reset before the first probe
+	public synchronized long quietPeriod() {
+		if ( count == 0 )
+			return initialQuietPeriod;
+		return Math.max(0, Math.min(LEGACY_QUIET_PERIOD, min() - PROBE_INTERVAL - GUARD));
+	}
+
+	//Records the time from reset to the probe that was answered
+	public synchronized void record(long bootMillis) {
+		samples[next] = bootMillis;
+		next = (next + 1) % SAMPLES;
+		if ( count < SAMPLES )
+			count++;
+	}
+
+	//Fastest boot over the recent samples, or 0 if there are none
+	public synchronized long min() {
+		long min = Long.MAX_VALUE;
+		for ( int i = 0; i < count; i++ )
+			min = Math.min(min, samples[i]);
+		return count == 0 ? 0 : min;
+	}
+
+}
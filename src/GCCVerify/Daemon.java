@@ -0,0 +1,359 @@
+/**
+ * Daemon.java keeps one GCCVerify process running with the manifest, library
+ * and image cache warm, and takes verification jobs over a small HTTP API
+ * bound to the loopback interface, so several front-ends can share it.
+ *
+ *   GET  /ports              attached serial ports
+ *   POST /jobs?port=COM3     queue a verification (optional &platform=ARDUINO)
+ *   GET  /jobs               every job still held, newest last
+ *   GET  /jobs/<id>          one job; add ?wait=<ms> to block until it finishes
+ *
+ * Contains the Daemon class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.*;
+import jssc.SerialPortList;
+
+public class Daemon {
+
+	public static final int DEFAULT_PORT = 8642;
+	//Finished jobs are kept around for polling until this many newer ones have been submitted
+	public static final int MAX_JOBS = 256;
+	public static final int MAX_WAIT = 60000;
+	//What Host may say, i.e. the loopback address the server listens on
+	private static final String[] LOCAL_HOST_NAMES = {"127.0.0.1", "localhost", "[::1]"};
+
+	private final Station station;
+	private final HttpServer server;
+	private final ExecutorService handlers;
+	private final LinkedHashMap<String, Job> jobs = new LinkedHashMap<String, Job>();
+	private final AtomicLong nextId = new AtomicLong(1);
+
+	public Daemon(int port, int maxPorts) throws IOException {
+		station = new Station(maxPorts);
+		//Loopback only; the API has no authentication
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		//Long polls hold a thread each, so handlers get a pool that can grow
+		handlers = Executors.newCachedThreadPool(new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "GCCVerify-api-" + count++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		server.setExecutor(handlers);
+		Filter localOnly = new Filter() {
+			public void doFilter(HttpExchange exchange, Filter.Chain chain) throws IOException {
+				if ( isLocalRequest(exchange) )
+					chain.doFilter(exchange);
+				else
+					sendError(exchange, 403, "Forbidden.");
+			}
+			public String description() {
+				return "Rejects requests that could have come from a web page";
+			}
+		};
+		server.createContext("/ports", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handlePorts(exchange);
+			}
+		}).getFilters().add(localOnly);
+		server.createContext("/jobs", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleJobs(exchange);
+			}
+		}).getFilters().add(localOnly);
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleMetrics(exchange);
+			}
+		}).getFilters().add(localOnly);
+	}
+
+	//Listening on loopback isn't enough on its own: a page in a local browser can still reach the API with a simple
+	//cross-origin request, or through DNS rebinding. Browsers always send Origin on the former and the attacker's
+	//host name in Host on the latter, while scripts and curl send neither.
+	private boolean isLocalRequest(HttpExchange exchange) {
+		Headers headers = exchange.getRequestHeaders();
+		if ( headers.containsKey("Origin") )
+			return false;
+		String host = headers.getFirst("Host");
+		if ( host == null )
+			return false;
+		int port = server.getAddress().getPort();
+		for ( String name : LOCAL_HOST_NAMES ) {
+			if ( host.equalsIgnoreCase(name + ":" + port) || (port == 80 && host.equalsIgnoreCase(name)) )
+				return true;
+		}
+		return false;
+	}
+
+	public void start() {
+		server.start();
+		System.out.printf("Listening on http://%s:%d/%n%n", InetAddress.getLoopbackAddress().getHostAddress(), server.getAddress().getPort());
+	}
+
+	public void stop() {
+		server.stop(0);
+		handlers.shutdownNow();
+		station.shutdown();
+	}
+
+	public Job submit(String portName, Verifier.Platform platform) {
+		return submit(portName, platform, null);
+	}
+
+	//Queues a verification of portName. Returns null if that port already has one queued or running.
+	public synchronized Job submit(String portName, Verifier.Platform platform, Station.ResultListener listener) {
+		for ( Job job : jobs.values() ) {
+			if ( job.portName.equals(portName) && !job.result.isDone() )
+				return null;
+		}
+		Job job = new Job(Long.toString(nextId.getAndIncrement()), portName, platform, station.submit(portName, platform, listener));
+		jobs.put(job.id, job);
+		//Drop the oldest finished jobs once there are too many
+		Iterator<Job> it = jobs.values().iterator();
+		while ( jobs.size() > MAX_JOBS && it.hasNext() ) {
+			if ( it.next().result.isDone() )
+				it.remove();
+		}
+		return job;
+	}
+
+	public synchronized Job job(String id) {
+		return jobs.get(id);
+	}
+
+	private void handlePorts(HttpExchange exchange) throws IOException {
+		if ( !exchange.getRequestURI().getPath().equals("/ports") ) {
+			sendError(exchange, 404, "Not found.");
+			return;
+		}
+		if ( !exchange.getRequestMethod().equals("GET") ) {
+			sendError(exchange, 405, "Method not allowed.");
+			return;
+		}
+		StringWriter body = new StringWriter();
+		JsonWriter writer = new JsonWriter(body);
+		writer.beginArray();
+		for ( String portName : SerialPortList.getPortNames() )
+			writer.value(portName);
+		writer.endArray();
+		writer.close();
+		send(exchange, 200, body.toString());
+	}
+
+	//GET /metrics for per-phase timing histograms as JSON, or ?format=text for the same table watch mode prints
+	private void handleMetrics(HttpExchange exchange) throws IOException {
+		if ( !exchange.getRequestURI().getPath().equals("/metrics") ) {
+			sendError(exchange, 404, "Not found.");
+			return;
+		}
+		if ( !exchange.getRequestMethod().equals("GET") ) {
+			sendError(exchange, 405, "Method not allowed.");
+			return;
+		}
+		if ( "text".equals(parseQuery(exchange.getRequestURI().getRawQuery()).get("format")) )
+			send(exchange, 200, Metrics.shared().toText(), "text/plain; charset=utf-8");
+		else
+			send(exchange, 200, Metrics.shared().toJson());
+	}
+
+	private void handleJobs(HttpExchange exchange) throws IOException {
+		String method = exchange.getRequestMethod();
+		String path = exchange.getRequestURI().getPath();
+		Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+		//"/jobs" is the collection and "/jobs/<id>" a job; the context also matches anything else starting with "/jobs"
+		String id = null;
+		if ( path.startsWith("/jobs/") && path.length() > "/jobs/".length() && path.indexOf('/', "/jobs/".length()) < 0 )
+			id = path.substring("/jobs/".length());
+		else if ( !path.equals("/jobs") ) {
+			sendError(exchange, 404, "Not found.");
+			return;
+		}
+
+		if ( id == null && method.equals("POST") ) {
+			String portName = query.get("port");
+			if ( portName == null || portName.isEmpty() ) {
+				sendError(exchange, 400, "Missing port.");
+				return;
+			}
+			Verifier.Platform platform;
+			try {
+				platform = query.containsKey("platform") ? Verifier.Platform.valueOf(query.get("platform").toUpperCase()) : Verifier.Platform.values()[0];
+			} catch ( IllegalArgumentException e ) {
+				sendError(exchange, 400, "Unknown platform.");
+				return;
+			}
+			Job job = submit(portName, platform);
+			if ( job == null ) {
+				sendError(exchange, 409, "A verification of " + portName + " is already in progress.");
+				return;
+			}
+			exchange.getResponseHeaders().set("Location", "/jobs/" + job.id);
+			send(exchange, 202, toJson(job));
+		}
+		else if ( id == null && method.equals("GET") ) {
+			List<Job> snapshot;
+			synchronized ( this ) {
+				snapshot = new ArrayList<Job>(jobs.values());
+			}
+			StringWriter body = new StringWriter();
+			JsonWriter writer = new JsonWriter(body);
+			writer.beginArray();
+			for ( Job job : snapshot )
+				writeJob(writer, job);
+			writer.endArray();
+			writer.close();
+			send(exchange, 200, body.toString());
+		}
+		else if ( id != null && method.equals("GET") ) {
+			Job job = job(id);
+			if ( job == null ) {
+				sendError(exchange, 404, "No such job.");
+				return;
+			}
+			if ( query.containsKey("wait") ) {
+				try {
+					long wait = Math.min(Math.max(Long.parseLong(query.get("wait")), 0), MAX_WAIT);
+					job.result.get(wait, TimeUnit.MILLISECONDS);
+				} catch ( NumberFormatException e ) {
+					sendError(exchange, 400, "Bad wait.");
+					return;
+				} catch ( TimeoutException | ExecutionException e ) {
+					//Report whatever state it is in
+				} catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			//A finished job can also be fetched as the console report or its one-line summary
+			String format = query.get("format");
+			if ( ("text".equals(format) || "compact".equals(format)) && job.result.isDone() ) {
+				try {
+					Station.StationResult result = job.result.get();
+					send(exchange, 200, format.equals("text") ? ResultRenderer.text(result) : ResultRenderer.compact(result) + "\n", "text/plain; charset=utf-8");
+					return;
+				} catch ( InterruptedException | ExecutionException | CancellationException e ) {
+					//Report the error as JSON
+				}
+			}
+			send(exchange, 200, toJson(job));
+		}
+		else {
+			sendError(exchange, 405, "Method not allowed.");
+		}
+	}
+
+	private static String toJson(Job job) throws IOException {
+		StringWriter body = new StringWriter();
+		JsonWriter writer = new JsonWriter(body);
+		writeJob(writer, job);
+		writer.close();
+		return body.toString();
+	}
+
+	private static void writeJob(JsonWriter writer, Job job) throws IOException {
+		writer.beginObject();
+		writer.name("id").value(job.id);
+		writer.name("port").value(job.portName);
+		writer.name("platform").value(job.platform.name());
+		if ( !job.result.isDone() ) {
+			writer.name("status").value("pending");
+		}
+		else {
+			try {
+				Station.StationResult result = job.result.get();
+				writer.name("status").value("done");
+				writer.name("result");
+				writer.beginObject();
+				ResultRenderer.writeFields(writer, result);
+				writer.name("log").value(result.log);
+				writer.endObject();
+			} catch ( InterruptedException | ExecutionException | CancellationException e ) {
+				writer.name("status").value("error");
+			}
+		}
+		writer.endObject();
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+		Map<String, String> query = new HashMap<String, String>();
+		if ( rawQuery == null )
+			return query;
+		for ( String pair : rawQuery.split("&") ) {
+			int eq = pair.indexOf('=');
+			if ( eq < 0 )
+				query.put(URLDecoder.decode(pair, "UTF-8"), "");
+			else
+				query.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return query;
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		StringWriter body = new StringWriter();
+		JsonWriter writer = new JsonWriter(body);
+		writer.beginObject();
+		writer.name("error").value(message);
+		writer.endObject();
+		writer.close();
+		send(exchange, status, body.toString());
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		send(exchange, status, body, "application/json; charset=utf-8");
+	}
+
+	private static void send(HttpExchange exchange, int status, String body, String contentType) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length);
+		try ( OutputStream out = exchange.getResponseBody() ) {
+			out.write(bytes);
+		}
+	}
+
+	public static class Job {
+		public final String id;
+		public final String portName;
+		public final Verifier.Platform platform;
+		public final Future<Station.StationResult> result;
+
+		Job(String id, String portName, Verifier.Platform platform, Future<Station.StationResult> result) {
+			this.id = id;
+			this.portName = portName;
+			this.platform = platform;
+			this.result = result;
+		}
+	}
+
+}
@@ -0,0 +1,591 @@
+/**
+ * EmulatedController.java is an in-process stand-in for an Arduino-based
+ * controller on a serial port. After a reset it runs an STK500v1 bootloader
+ * serving its flash, then the application, which answers "GCCVerify" with its
+ * parameters during its listen window and, if its response lists them, the
+ * digest and dump extensions. Every byte takes as long as it would at the baud
+ * rate it was sent at, and bytes sent at the wrong baud rate are lost, so
+ * verifications against it take about as long as against the real thing.
+ *
+ * Contains the EmulatedController class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import com.google.gson.JsonSyntaxException;
+import jssc.*;
+
+public class EmulatedController implements Transport {
+
+	//Inactivity before the bootloader starts the application, as Optiboot's watchdog
+	public static final int DEFAULT_BOOTLOADER_TIMEOUT = 1000;
+	//From the application starting to its serial port being up
+	public static final int DEFAULT_BOOT_DELAY = 50;
+	//The example firmware only looks for "GCCVerify" during its first second
+	public static final int DEFAULT_LISTEN_WINDOW = 1000;
+	public static final int DEFAULT_FLASH_SIZE = 32768;
+	//What the example Hax/WatchingTime firmware sends with every mod enabled
+	public static final String DEFAULT_RESPONSE = "{\"name\":\"Hax-WatchingTime\",\"major_version\":2,\"minor_version\":2,\"mods\":[" +
+		"{\"name\":\"max_vectors\",\"enabled\":true,\"values\":[{\"name\":\"analog_radius\",\"value\":75},{\"name\":\"analog_angle\",\"value\":6}," +
+		"{\"name\":\"c_radius\",\"value\":79},{\"name\":\"c_angle\",\"value\":17}]}," +
+		"{\"name\":\"perfect_angles\",\"enabled\":true,\"values\":[{\"name\":\"radius\",\"value\":75},{\"name\":\"angle_min\",\"value\":6}," +
+		"{\"name\":\"angle_max\",\"value\":19}]}," +
+		"{\"name\":\"shield_drop_expand\",\"enabled\":true,\"values\":[{\"name\":\"radius\",\"value\":72},{\"name\":\"angle\",\"value\":4}]}," +
+		"{\"name\":\"dash_back\",\"enabled\":true,\"values\":[{\"name\":\"frames\",\"value\":1}]}," +
+		"{\"name\":\"dolphin_fix\",\"enabled\":true,\"values\":[{\"name\":\"analog_radius\",\"value\":8},{\"name\":\"c_radius\",\"value\":8}," +
+		"{\"name\":\"dash_back_frames\",\"value\":6}]}]}";
+
+	//STK500v1 protocol bytes. Commands not listed here are two bytes long and answered with just STK_INSYNC, STK_OK.
+	private static final int STK_OK = 0x10;
+	private static final int STK_INSYNC = 0x14;
+	private static final int CRC_EOP = 0x20;
+	private static final int STK_GET_PARAMETER = 0x41;
+	private static final int STK_SET_DEVICE = 0x42;
+	private static final int STK_SET_DEVICE_EXT = 0x45;
+	private static final int STK_LEAVE_PROGMODE = 0x51;
+	private static final int STK_LOAD_ADDRESS = 0x55;
+	private static final int STK_UNIVERSAL = 0x56;
+	private static final int STK_READ_PAGE = 0x74;
+	private static final int STK_READ_SIGN = 0x75;
+	//Optiboot leaves through a short watchdog reset
+	private static final int LEAVE_DELAY = 16;
+	private static final byte DUMP_FRAME_START = 0x7E;
+	private static final byte DUMP_READY = 0x06;
+	//8N1
+	private static final int BITS_PER_BYTE = 10;
+	//Largest piece the host is handed at once, about what a USB serial adapter passes on per transfer
+	private static final int RECEIVE_CHUNK = 32;
+
+	//Every emulated line shares one thread, which runs deliveries in time order
+	private static final ScheduledExecutorService wire = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "GCCVerify-emulator");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private static enum State {RESET, BOOTLOADER, APPLICATION};
+
+	private final String portName;
+	private final byte[] signature = {0x1E, (byte) 0x95, 0x0F};
+	private final byte[] flash;
+	private int bootloaderTimeout = DEFAULT_BOOTLOADER_TIMEOUT;
+	private int bootDelay = DEFAULT_BOOT_DELAY;
+	private int listenWindow = DEFAULT_LISTEN_WINDOW;
+	private int baudRate = SerialPort.BAUDRATE_9600;
+	private int bootloaderBaudRate = SerialPort.BAUDRATE_57600;
+	private int maxDumpBaudRate = FlashDump.DEFAULT_BAUD_RATE;
+	private String response;
+	private boolean digestCapable;
+	private boolean digestAnswered = true;
+	private boolean dumpCapable;
+
+	//The host's end of the line
+	private boolean opened = false;
+	private boolean dtr = false;
+	private int hostBaudRate = SerialPort.BAUDRATE_9600;
+	private Listener listener;
+	private byte[] received = new byte[512];
+	private int receivedLength = 0;
+	private long hostTxFree;
+
+	//The controller's end. Anything it scheduled before its last reset is dropped.
+	private State state = State.RESET;
+	private int generation = 0;
+	private int deviceBaudRate;
+	private long deviceTxFree;
+	private final ByteArrayOutputStream input = new ByteArrayOutputStream();
+	private long appStart;
+	private long lastCommand;
+	private int loadAddress;
+	private boolean answered;
+	private boolean awaitingReady;
+	private List<int[]> dumpRanges;
+
+	public EmulatedController(String portName) {
+		this(portName, DEFAULT_FLASH_SIZE);
+	}
+
+	public EmulatedController(String portName, int flashSize) {
+		this.portName = portName;
+		flash = new byte[flashSize];
+		Arrays.fill(flash, (byte) 0xFF);
+		setResponse(DEFAULT_RESPONSE);
+	}
+
+	//Configuration. Changes take effect from the next reset.
+
+	public synchronized void setBootloaderTimeout(int millis) {
+		bootloaderTimeout = millis;
+	}
+
+	public synchronized void setBootDelay(int millis) {
+		bootDelay = millis;
+	}
+
+	public synchronized void setListenWindow(int millis) {
+		listenWindow = millis;
+	}
+
+	public synchronized void setBaudRate(int baudRate) {
+		this.baudRate = baudRate;
+	}
+
+	public synchronized void setBootloaderBaudRate(int baudRate) {
+		bootloaderBaudRate = baudRate;
+	}
+
+	public synchronized void setMaxDumpBaudRate(int baudRate) {
+		maxDumpBaudRate = baudRate;
+	}
+
+	//The parameter JSON sent in answer to "GCCVerify". Its "capabilities" decide which extensions are answered.
+	public synchronized void setResponse(String json) {
+		response = json;
+		try {
+			Verifier.FirmwareParams params = JsonBinder.readFirmwareParams(json);
+			digestCapable = params.supports(FlashDigest.CAPABILITY);
+			dumpCapable = params.supports(FlashDump.CAPABILITY);
+		} catch ( JsonSyntaxException e ) {
+			//Deliberately broken responses are sent as they are
+			digestCapable = false;
+			dumpCapable = false;
+		}
+	}
+
+	//Firmware that lists the digest extension but never answers the challenge
+	public synchronized void setDigestAnswered(boolean answered) {
+		digestAnswered = answered;
+	}
+
+	public synchronized void loadImage(HexImage image) {
+		for ( int i = 0; i < image.segmentCount(); i++ ) {
+			ByteBuffer data = image.segmentData(i);
+			data.get(flash, image.segmentAddress(i), image.segmentLength(i));
+		}
+	}
+
+	public synchronized void writeFlash(int address, byte[] bytes) {
+		System.arraycopy(bytes, 0, flash, address, bytes.length);
+	}
+
+	//Transport, from the host's side
+
+	public String getPortName() {
+		return portName;
+	}
+
+	public synchronized boolean isOpened() {
+		return opened;
+	}
+
+	//Opening the port asserts DTR, which resets the board like a real Arduino
+	public synchronized void openPort() throws SerialPortException {
+		if ( opened )
+			throw new SerialPortException(portName, "openPort()", SerialPortException.TYPE_PORT_ALREADY_OPENED);
+		opened = true;
+		receivedLength = 0;
+		setDTR(true);
+	}
+
+	public synchronized boolean closePort() throws SerialPortException {
+		checkOpened("closePort()");
+		opened = false;
+		dtr = false;
+		listener = null;
+		receivedLength = 0;
+		notifyAll();
+		return true;
+	}
+
+	public synchronized boolean setParams(int baudRate, int dataBits, int stopBits, int parity) throws SerialPortException {
+		checkOpened("setParams()");
+		hostBaudRate = baudRate;
+		return true;
+	}
+
+	//Asserting DTR resets the board through its auto-reset capacitor
+	public synchronized boolean setDTR(boolean enabled) throws SerialPortException {
+		checkOpened("setDTR()");
+		if ( enabled && !dtr )
+			reset();
+		dtr = enabled;
+		return true;
+	}
+
+	public synchronized boolean setRTS(boolean enabled) throws SerialPortException {
+		checkOpened("setRTS()");
+		return true;
+	}
+
+	public synchronized void purgeInput() throws SerialPortException {
+		checkOpened("purgePort()");
+		receivedLength = 0;
+	}
+
+	public void writeBytes(byte[] bytes) throws SerialPortException {
+		final byte[] sent = bytes.clone();
+		final int baud;
+		long arrival;
+		synchronized ( this ) {
+			checkOpened("writeBytes()");
+			hostTxFree = Math.max(System.nanoTime(), hostTxFree) + transmitNanos(sent.length, hostBaudRate);
+			arrival = hostTxFree;
+			baud = hostBaudRate;
+		}
+		schedule(arrival, new Runnable() {
+			public void run() {
+				deviceReceive(sent, baud);
+			}
+		});
+	}
+
+	public synchronized byte[] readBytes(int count, int timeout) throws SerialPortException, SerialPortTimeoutException {
+		checkOpened("readBytes()");
+		long endTime = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while ( receivedLength < count ) {
+			if ( remaining <= 0 || !opened )
+				throw new SerialPortTimeoutException(portName, "readBytes()", timeout);
+			try {
+				wait(remaining);
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new SerialPortTimeoutException(portName, "readBytes()", timeout);
+			}
+			remaining = endTime - System.currentTimeMillis();
+		}
+		byte[] bytes = Arrays.copyOf(received, count);
+		System.arraycopy(received, count, received, 0, receivedLength - count);
+		receivedLength -= count;
+		return bytes;
+	}
+
+	public synchronized void addListener(Listener listener) throws SerialPortException {
+		checkOpened("addEventListener()");
+		if ( this.listener != null )
+			throw new SerialPortException(portName, "addEventListener()", SerialPortException.TYPE_LISTENER_ALREADY_ADDED);
+		this.listener = listener;
+	}
+
+	public synchronized void removeListener() throws SerialPortException {
+		if ( listener == null )
+			throw new SerialPortException(portName, "removeEventListener()", SerialPortException.TYPE_CANT_REMOVE_LISTENER);
+		listener = null;
+	}
+
+	private void checkOpened(String method) throws SerialPortException {
+		if ( !opened )
+			throw new SerialPortException(portName, method, SerialPortException.TYPE_PORT_NOT_OPENED);
+	}
+
+	//Bytes arriving at the host, on the wire thread
+	private void hostReceive(byte[] bytes, int baud, int sentGeneration) {
+		Listener receiver;
+		synchronized ( this ) {
+			if ( sentGeneration != generation || !opened || baud != hostBaudRate )
+				return;
+			receiver = listener;
+			if ( receiver == null ) {
+				if ( receivedLength + bytes.length > received.length )
+					received = Arrays.copyOf(received, Math.max(received.length * 2, receivedLength + bytes.length));
+				System.arraycopy(bytes, 0, received, receivedLength, bytes.length);
+				receivedLength += bytes.length;
+				notifyAll();
+			}
+		}
+		//Outside the lock, like jssc's event thread
+		if ( receiver != null )
+			receiver.dataReceived(bytes);
+	}
+
+	//The controller, all of it on the wire thread except reset()
+
+	private void reset() {
+		generation++;
+		state = State.BOOTLOADER;
+		deviceBaudRate = bootloaderBaudRate;
+		deviceTxFree = System.nanoTime();
+		input.reset();
+		lastCommand = System.nanoTime();
+		scheduleBootloaderTimeout();
+	}
+
+	private synchronized void deviceReceive(byte[] bytes, int baud) {
+		//Bytes at the wrong baud rate come out as framing errors and noise, which neither end acts on
+		if ( state == State.RESET || baud != deviceBaudRate )
+			return;
+		if ( state == State.BOOTLOADER )
+			bootloaderReceive(bytes);
+		else
+			applicationReceive(bytes);
+	}
+
+	private void scheduleBootloaderTimeout() {
+		final int bootGeneration = generation;
+		schedule(lastCommand + TimeUnit.MILLISECONDS.toNanos(bootloaderTimeout), new Runnable() {
+			public void run() {
+				synchronized ( EmulatedController.this ) {
+					if ( bootGeneration != generation || state != State.BOOTLOADER )
+						return;
+					if ( System.nanoTime() - lastCommand >= TimeUnit.MILLISECONDS.toNanos(bootloaderTimeout) )
+						startApplication(0);
+					else
+						scheduleBootloaderTimeout();
+				}
+			}
+		});
+	}
+
+	private void bootloaderReceive(byte[] bytes) {
+		input.write(bytes, 0, bytes.length);
+		byte[] buffer = input.toByteArray();
+		int start = 0;
+		while ( start < buffer.length ) {
+			int command = buffer[start] & 0xFF;
+			int length = commandLength(command);
+			if ( buffer.length - start < length )
+				break;
+			//Optiboot gives up and starts the application on anything out of sync
+			if ( (buffer[start + length - 1] & 0xFF) != CRC_EOP ) {
+				startApplication(LEAVE_DELAY);
+				return;
+			}
+			lastCommand = System.nanoTime();
+			ByteArrayOutputStream reply = new ByteArrayOutputStream();
+			reply.write(STK_INSYNC);
+			switch ( command ) {
+				case STK_READ_SIGN:
+					reply.write(signature, 0, signature.length);
+					break;
+				case STK_GET_PARAMETER:
+				case STK_UNIVERSAL:
+					reply.write(0x03);
+					break;
+				case STK_LOAD_ADDRESS:
+					loadAddress = ((buffer[start + 1] & 0xFF) | ((buffer[start + 2] & 0xFF) << 8)) << 1;
+					break;
+				case STK_READ_PAGE:
+					int count = ((buffer[start + 1] & 0xFF) << 8) | (buffer[start + 2] & 0xFF);
+					boolean isFlash = buffer[start + 3] == 'F';
+					for ( int i = 0; i < count; i++ )
+						reply.write(isFlash ? readFlash(loadAddress + i) : 0xFF);
+					break;
+			}
+			reply.write(STK_OK);
+			send(reply.toByteArray());
+			start += length;
+			if ( command == STK_LEAVE_PROGMODE ) {
+				startApplication(LEAVE_DELAY);
+				return;
+			}
+		}
+		input.reset();
+		input.write(buffer, start, buffer.length - start);
+	}
+
+	//Whole command length including the command byte and CRC_EOP
+	private static int commandLength(int command) {
+		switch ( command ) {
+			case STK_GET_PARAMETER:
+				return 3;
+			case STK_LOAD_ADDRESS:
+				return 4;
+			case STK_READ_PAGE:
+				return 5;
+			case STK_UNIVERSAL:
+				return 6;
+			case STK_SET_DEVICE_EXT:
+				return 7;
+			case STK_SET_DEVICE:
+				return 22;
+			default:
+				return 2;
+		}
+	}
+
+	//Starts the application delay ms from now, once whatever the bootloader is sending has gone out
+	private void startApplication(int delay) {
+		//Stops taking input; replies already queued still go out
+		state = State.RESET;
+		final int bootGeneration = generation;
+		schedule(Math.max(System.nanoTime(), deviceTxFree) + TimeUnit.MILLISECONDS.toNanos(delay), new Runnable() {
+			public void run() {
+				synchronized ( EmulatedController.this ) {
+					if ( bootGeneration != generation )
+						return;
+					state = State.APPLICATION;
+					deviceBaudRate = baudRate;
+					appStart = System.nanoTime();
+					input.reset();
+					answered = false;
+					awaitingReady = false;
+				}
+			}
+		});
+	}
+
+	private void applicationReceive(byte[] bytes) {
+		if ( awaitingReady ) {
+			for ( byte b : bytes ) {
+				if ( b == DUMP_READY ) {
+					awaitingReady = false;
+					sendDump();
+					break;
+				}
+			}
+			return;
+		}
+		if ( !answered ) {
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - appStart);
+			//Before Serial.begin() nothing is received; after the window the firmware has moved on
+			if ( elapsed < bootDelay || elapsed >= listenWindow )
+				return;
+			input.write(bytes, 0, bytes.length);
+			if ( new String(input.toByteArray(), StandardCharsets.US_ASCII).contains("GCCVerify") ) {
+				answered = true;
+				input.reset();
+				send((response + "\r\n").getBytes(StandardCharsets.UTF_8));
+			}
+			return;
+		}
+		if ( !digestCapable && !dumpCapable )
+			return;
+		input.write(bytes, 0, bytes.length);
+		String buffered = new String(input.toByteArray(), StandardCharsets.US_ASCII);
+		int end;
+		while ( (end = buffered.indexOf("\r\n")) >= 0 ) {
+			extensionCommand(buffered.substring(0, end));
+			buffered = buffered.substring(end + 2);
+		}
+		input.reset();
+		byte[] rest = buffered.getBytes(StandardCharsets.US_ASCII);
+		input.write(rest, 0, rest.length);
+	}
+
+	//"GCCDigest:<nonce>:<ranges>" or "GCCDump:<baud>:<ranges>"; anything malformed is ignored like the firmware would
+	private void extensionCommand(String line) {
+		String[] parts = line.split(":");
+		if ( parts.length != 3 )
+			return;
+		List<int[]> ranges;
+		try {
+			ranges = parseRanges(parts[2]);
+			if ( parts[0].endsWith(FlashDigest.COMMAND) && digestCapable ) {
+				if ( !digestAnswered )
+					return;
+				CRC32 crc = new CRC32();
+				for ( int i = 0; i + 1 < parts[1].length(); i += 2 )
+					crc.update(Integer.parseInt(parts[1].substring(i, i + 2), 16));
+				for ( int[] range : ranges ) {
+					for ( int i = 0; i < range[1]; i++ )
+						crc.update(readFlash(range[0] + i));
+				}
+				send(String.format("{\"digest\":\"%08X\"}\r\n", crc.getValue()).getBytes(StandardCharsets.US_ASCII));
+			}
+			else if ( parts[0].endsWith(FlashDump.COMMAND) && dumpCapable ) {
+				final int accepted = Math.min(Integer.parseInt(parts[1]), maxDumpBaudRate);
+				send(String.format("{\"baud\":%d}\r\n", accepted).getBytes(StandardCharsets.US_ASCII));
+				if ( accepted <= 0 )
+					return;
+				dumpRanges = ranges;
+				//Switch once the answer is out, then wait for the host to switch too
+				final int dumpGeneration = generation;
+				schedule(deviceTxFree, new Runnable() {
+					public void run() {
+						synchronized ( EmulatedController.this ) {
+							if ( dumpGeneration != generation )
+								return;
+							deviceBaudRate = accepted;
+							awaitingReady = true;
+						}
+					}
+				});
+			}
+		} catch ( NumberFormatException e ) {}
+	}
+
+	private static List<int[]> parseRanges(String ranges) {
+		List<int[]> parsed = new ArrayList<int[]>();
+		for ( String range : ranges.split(",") ) {
+			int plus = range.indexOf('+');
+			if ( plus < 0 )
+				throw new NumberFormatException(range);
+			parsed.add(new int[]{Integer.parseInt(range.substring(0, plus), 16), Integer.parseInt(range.substring(plus + 1), 16)});
+		}
+		return parsed;
+	}
+
+	private void sendDump() {
+		CRC32 crc = new CRC32();
+		for ( int[] range : dumpRanges ) {
+			for ( int offset = 0; offset < range[1]; offset += FlashDump.MAX_FRAME_LENGTH ) {
+				int address = range[0] + offset;
+				int length = Math.min(FlashDump.MAX_FRAME_LENGTH, range[1] - offset);
+				ByteBuffer frame = ByteBuffer.allocate(7 + length + 4);
+				frame.put(DUMP_FRAME_START).putInt(address).putShort((short) length);
+				for ( int i = 0; i < length; i++ )
+					frame.put((byte) readFlash(address + i));
+				crc.reset();
+				crc.update(frame.array(), 1, 6 + length);
+				frame.putInt((int) crc.getValue());
+				send(frame.array());
+			}
+		}
+	}
+
+	private int readFlash(int address) {
+		return address >= 0 && address < flash.length ? flash[address] & 0xFF : 0xFF;
+	}
+
+	//Queues bytes on the controller's transmitter at its current baud rate. They arrive a few at a time like from a UART,
+	//so the host sees the start of a long answer long before its end.
+	private void send(byte[] bytes) {
+		final int baud = deviceBaudRate;
+		final int sentGeneration = generation;
+		for ( int offset = 0; offset < bytes.length; offset += RECEIVE_CHUNK ) {
+			final byte[] chunk = Arrays.copyOfRange(bytes, offset, Math.min(bytes.length, offset + RECEIVE_CHUNK));
+			deviceTxFree = Math.max(System.nanoTime(), deviceTxFree) + transmitNanos(chunk.length, baud);
+			schedule(deviceTxFree, new Runnable() {
+				public void run() {
+					hostReceive(chunk, baud, sentGeneration);
+				}
+			});
+		}
+	}
+
+	private static long transmitNanos(int count, int baud) {
+		return (long) count * BITS_PER_BYTE * 1000000000L / baud;
+	}
+
+	private static void schedule(long nanoTime, Runnable task) {
+		wire.schedule(task, Math.max(0, nanoTime - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+}
@@ -0,0 +1,106 @@
+/**
+ * FlashCapture.java holds flash pages read back from a controller before it
+ * is known which firmware it runs, so they can be compared against the right
+ * library image afterwards without going back to the bootloader.
+ *
+ * Contains the FlashCapture class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public class FlashCapture {
+
+	private final byte[] data;
+	private final int pageSize;
+	private final BitSet pages = new BitSet();
+
+	public FlashCapture(int flashSize, int pageSize) {
+		data = new byte[flashSize];
+		this.pageSize = pageSize;
+	}
+
+	//Stores whole pages read starting at a page-aligned address
+	public void store(int address, byte[] bytes, int offset, int length) {
+		System.arraycopy(bytes, offset, data, address, length);
+		pages.set(address / pageSize, (address + length + pageSize - 1) / pageSize);
+	}
+
+	//Returns true if every page of every {start, length} range has been captured
+	public boolean covers(List<int[]> ranges) {
+		for ( int[] range : ranges ) {
+			if ( range[0] + range[1] > data.length )
+				return false;
+			int first = range[0] / pageSize;
+			int end = (range[0] + range[1] + pageSize - 1) / pageSize;
+			int missing = pages.nextClearBit(first);
+			if ( missing < end )
+				return false;
+		}
+		return true;
+	}
+
+	//Compares the captured pages against image, which must be covered. Returns the first mismatch or -1.
+	public int firstMismatch(HexImage image) {
+		for ( int[] range : image.pageRanges(pageSize) ) {
+			int mismatch = image.firstMismatch(range[0], data, range[0], range[1]);
+			if ( mismatch >= 0 )
+				return mismatch;
+		}
+		return -1;
+	}
+
+	//Total bytes in a list of {start, length} ranges
+	public static long size(List<int[]> ranges) {
+		long size = 0;
+		for ( int[] range : ranges )
+			size += range[1];
+		return size;
+	}
+
+	//Merges the page ranges of several images into one sorted list of non-overlapping {start, length} ranges
+	public static List<int[]> union(List<List<int[]>> rangeLists) {
+		List<int[]> all = new ArrayList<int[]>();
+		for ( List<int[]> ranges : rangeLists ) {
+			for ( int[] range : ranges )
+				all.add(new int[]{range[0], range[1]});
+		}
+		Collections.sort(all, new Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return Integer.compare(a[0], b[0]);
+			}
+		});
+		List<int[]> merged = new ArrayList<int[]>();
+		for ( int[] range : all ) {
+			int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+			if ( last != null && range[0] <= last[0] + last[1] )
+				last[1] = Math.max(last[1], range[0] + range[1] - last[0]);
+			else
+				merged.add(range);
+		}
+		return merged;
+	}
+
+}
@@ -0,0 +1,84 @@
+/**
+ * FlashDigest.java implements the challenge-response extension of the
+ * "GCCVerify" protocol. Instead of reading flash back through the bootloader,
+ * the verifier sends the running firmware a random nonce and the address
+ * ranges the library image covers, and the firmware answers with a CRC-32
+ * over the nonce followed by those flash bytes. The expected answer is
+ * computed from the library image, and a fresh nonce every time means an
+ * answer can't be recorded once and replayed.
+ *
+ * Contains the FlashDigest class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.zip.CRC32;
+
+public class FlashDigest {
+
+	//Firmware lists this in "capabilities" if it answers digest challenges
+	public static final String CAPABILITY = "digest";
+	public static final String COMMAND = "GCCDigest";
+	public static final int NONCE_LENGTH = 8;
+	//Time allowed for the firmware to checksum its flash and answer
+	public static final int RESPONSE_TIMEOUT = 2000;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private final byte[] nonce;
+	private final HexImage image;
+
+	public FlashDigest(HexImage image) {
+		this.image = image;
+		nonce = new byte[NONCE_LENGTH];
+		random.nextBytes(nonce);
+	}
+
+	//"GCCDigest:<nonce>:<ranges>\r\n", the nonce in upper-case hex
+	public String request() {
+		return COMMAND + ":" + Verifier.bytesToHex(nonce) + ":" + ranges(image) + "\r\n";
+	}
+
+	//"<address>+<length>,..." in upper-case hex, one range per image segment. Shared with the dump request.
+	static String ranges(HexImage image) {
+		StringBuilder ranges = new StringBuilder();
+		for ( int i = 0; i < image.segmentCount(); i++ ) {
+			if ( i > 0 )
+				ranges.append(',');
+			ranges.append(Integer.toHexString(image.segmentAddress(i)).toUpperCase()).append('+')
+				  .append(Integer.toHexString(image.segmentLength(i)).toUpperCase());
+		}
+		return ranges.toString();
+	}
+
+	//CRC-32 (the zlib/Ethernet polynomial) of the nonce followed by each segment's bytes in order
+	public long expected() {
+		CRC32 crc = new CRC32();
+		crc.update(nonce);
+		for ( int i = 0; i < image.segmentCount(); i++ ) {
+			ByteBuffer data = image.segmentData(i);
+			crc.update(data);
+		}
+		return crc.getValue();
+	}
+
+}
@@ -0,0 +1,133 @@
+/**
+ * FlashDump.java implements the in-application flash dump extension of the
+ * "GCCVerify" protocol. Firmware that supports it switches its serial port to
+ * a faster baud rate on request and streams the flash the library image
+ * covers in CRC-checked frames, so the image can be compared without a reset
+ * or the bootloader.
+ *
+ * Contains the FlashDump class and its exception
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.util.zip.CRC32;
+import jssc.*;
+
+public class FlashDump {
+
+	//Firmware lists this in "capabilities" if it can stream its flash
+	public static final String CAPABILITY = "dump";
+	public static final String COMMAND = "GCCDump";
+	public static final int DEFAULT_BAUD_RATE = 500000;
+	//Rates that can be offered: above the 9600baud the parameters are read at, within 2% on a 16MHz AVR's UART, and
+	//supported by common USB serial adapters
+	public static final int[] BAUD_RATES = {19200, 38400, 57600, 250000, 500000, 1000000, 2000000};
+	public static final int MAX_FRAME_LENGTH = 256;
+
+	private static final byte FRAME_START = 0x7E;
+	private static final byte READY = 0x06;
+	//Start byte, 4 byte address, 2 byte length
+	private static final int HEADER_LENGTH = 7;
+	private static final int CRC_LENGTH = 4;
+	private static final int NEGOTIATE_TIMEOUT = 1000;
+	private static final int FRAME_TIMEOUT = 1000;
+
+	private final SerialSession session;
+	private final Transport serialPort;
+
+	public static boolean isSupportedBaudRate(int baudRate) {
+		for ( int supported : BAUD_RATES ) {
+			if ( supported == baudRate )
+				return true;
+		}
+		return false;
+	}
+
+	//The session's port must be open at the firmware's normal baud rate
+	public FlashDump(SerialSession session) {
+		this.session = session;
+		serialPort = session.port();
+	}
+
+	//Asks the firmware to stream every segment of image at up to baudRate and hands each frame to consumer as it
+	//arrives. Returns false if the consumer stopped the read early. Leaves the port at the negotiated baud rate.
+	public boolean read(HexImage image, int baudRate, Stk500.PageConsumer consumer)
+		throws SerialPortException, FlashDumpException, InterruptedException {
+		//"GCCDump:<baud>:<ranges>\r\n" at the normal baud rate, answered with {"baud":<accepted>}
+		SerialReceiver receiver = session.receiver();
+		receiver.clear();
+		serialPort.writeString(COMMAND + ":" + baudRate + ":" + FlashDigest.ranges(image) + "\r\n");
+		if ( !receiver.awaitTerminator(NEGOTIATE_TIMEOUT) )
+			throw new FlashDumpException("Controller did not answer the dump request.");
+		int accepted = JsonBinder.readDumpBaudRate(receiver.json());
+		if ( accepted <= 0 || accepted > baudRate )
+			throw new FlashDumpException("Controller declined the dump request.");
+
+		//The frames are binary, so read them directly rather than through the line-oriented receiver
+		session.detach();
+		try {
+			session.setBaudRate(accepted);
+		} catch ( SerialPortException e ) {
+			throw new FlashDumpException(String.format("Could not switch %s to %d baud.", serialPort.getPortName(), accepted));
+		}
+		serialPort.purgeInput();
+		//The firmware waits for this before it starts, so nothing is sent before both ends have switched
+		serialPort.writeBytes(new byte[]{READY});
+
+		CRC32 crc = new CRC32();
+		for ( int i = 0; i < image.segmentCount(); i++ ) {
+			int address = image.segmentAddress(i);
+			int end = address + image.segmentLength(i);
+			while ( address < end ) {
+				byte[] header = readBytes(HEADER_LENGTH);
+				if ( header[0] != FRAME_START )
+					throw new FlashDumpException("Lost frame sync.");
+				int frameAddress = ((header[1] & 0xFF) << 24) | ((header[2] & 0xFF) << 16) | ((header[3] & 0xFF) << 8) | (header[4] & 0xFF);
+				int frameLength = ((header[5] & 0xFF) << 8) | (header[6] & 0xFF);
+				if ( frameAddress != address || frameLength == 0 || frameLength > MAX_FRAME_LENGTH || frameAddress + frameLength > end )
+					throw new FlashDumpException(String.format("Unexpected frame for 0x%X+%d, expected 0x%X.", frameAddress, frameLength, address));
+
+				byte[] body = readBytes(frameLength + CRC_LENGTH);
+				//CRC-32 over the address, length and data
+				crc.reset();
+				crc.update(header, 1, HEADER_LENGTH - 1);
+				crc.update(body, 0, frameLength);
+				long frameCrc = ((body[frameLength] & 0xFFL) << 24) | ((body[frameLength + 1] & 0xFFL) << 16) |
+								((body[frameLength + 2] & 0xFFL) << 8) | (body[frameLength + 3] & 0xFFL);
+				if ( frameCrc != crc.getValue() )
+					throw new FlashDumpException(String.format("Bad checksum in frame for 0x%X.", frameAddress));
+
+				if ( !consumer.accept(frameAddress, body, 0, frameLength) )
+					return false;
+				address += frameLength;
+			}
+		}
+		return true;
+	}
+
+	private byte[] readBytes(int count) throws SerialPortException, FlashDumpException {
+		try {
+			return serialPort.readBytes(count, FRAME_TIMEOUT);
+		} catch ( SerialPortTimeoutException e ) {
+			throw new FlashDumpException("Controller stopped sending flash data.");
+		}
+	}
+
+}
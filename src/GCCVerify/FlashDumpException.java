@@ -0,0 +1,32 @@
+/**
+ * FlashDumpException.java is the error raised when firmware declines or breaks
+ * off a flash dump, so the image check falls back to the bootloader.
+ *
+ * Contains the FlashDumpException class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+@SuppressWarnings("serial")
+class FlashDumpException extends Exception {
+	public FlashDumpException(String message) {
+		super(message);
+	}
+}
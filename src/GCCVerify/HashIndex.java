@@ -0,0 +1,203 @@
+/**
+ * HashIndex.java remembers the SHA-256 of library files along with their size
+ * and modification time in a sidecar file (lib/hashes.idx), so files that
+ * haven't changed since the last run don't have to be hashed again at startup.
+ * Files that have changed are hashed with bulk channel reads. For downloaded
+ * files it also keeps the server's ETag and Last-Modified validators so the
+ * next download can be conditional.
+ *
+ * Contains the HashIndex class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import static java.nio.file.StandardCopyOption.*;
+
+public class HashIndex {
+
+	private static final HashIndex shared = new HashIndex(Paths.get("lib", "hashes.idx"));
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private final Path indexPath;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private boolean loaded = false;
+	private boolean dirty = false;
+
+	public HashIndex(Path indexPath) {
+		this.indexPath = indexPath;
+	}
+
+	public static HashIndex shared() {
+		return shared;
+	}
+
+	//Returns the upper-case hex SHA-256 of the file, hashing it only if it changed since it was last indexed
+	public String hash(Path path) throws IOException, NoSuchAlgorithmException {
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		long size = attrs.size();
+		long modified = attrs.lastModifiedTime().toMillis();
+		String key = path.toAbsolutePath().normalize().toString();
+		synchronized ( this ) {
+			load();
+			Entry entry = entries.get(key);
+			if ( entry != null && entry.size == size && entry.modified == modified )
+				return entry.hash;
+		}
+
+		String hash = sha256(path);
+		synchronized ( this ) {
+			entries.put(key, new Entry(size, modified, hash, null, null));
+			dirty = true;
+		}
+		return hash;
+	}
+
+	//Records a freshly downloaded file along with the validators the server sent for it (either may be null)
+	public void record(Path path, String hash, String etag, String lastModified) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		synchronized ( this ) {
+			load();
+			entries.put(path.toAbsolutePath().normalize().toString(), new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(), hash, etag, lastModified));
+			dirty = true;
+		}
+	}
+
+	//Returns {etag, lastModified} from the download that produced the file, or null if the file has changed since
+	public String[] validators(Path path) throws IOException {
+		if ( !Files.exists(path) )
+			return null;
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		synchronized ( this ) {
+			load();
+			Entry entry = entries.get(path.toAbsolutePath().normalize().toString());
+			if ( entry == null || entry.size != attrs.size() || entry.modified != attrs.lastModifiedTime().toMillis() )
+				return null;
+			if ( entry.etag == null && entry.lastModified == null )
+				return null;
+			return new String[]{entry.etag, entry.lastModified};
+		}
+	}
+
+	//Forgets the file, e.g. because it is about to be replaced
+	public synchronized void invalidate(Path path) {
+		load();
+		if ( entries.remove(path.toAbsolutePath().normalize().toString()) != null )
+			dirty = true;
+	}
+
+	public static String sha256(Path path) throws IOException, NoSuchAlgorithmException {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		try ( FileChannel channel = FileChannel.open(path, StandardOpenOption.READ) ) {
+			while ( channel.read(buffer) != -1 ) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return Verifier.bytesToHex(digest.digest());
+	}
+
+	//Reads the sidecar file the first time the index is used. A missing or corrupt file just means an empty index.
+	private void load() {
+		if ( loaded )
+			return;
+		loaded = true;
+		if ( !Files.isReadable(indexPath) )
+			return;
+		try ( BufferedReader reader = Files.newBufferedReader(indexPath, StandardCharsets.UTF_8) ) {
+			String line;
+			while ( (line = reader.readLine()) != null ) {
+				//path, size, mtime, hash[, etag, last-modified]
+				String[] fields = line.split("\t");
+				if ( fields.length != 4 && fields.length != 6 )
+					continue;
+				String etag = fields.length == 6 ? nullIfDash(fields[4]) : null;
+				String lastModified = fields.length == 6 ? nullIfDash(fields[5]) : null;
+				try {
+					entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3], etag, lastModified));
+				} catch ( NumberFormatException e ) {}
+			}
+		} catch ( IOException e ) {
+			if ( Verifier.debug )
+				System.out.println(e.toString());
+			entries.clear();
+		}
+	}
+
+	//Writes the index back if anything changed. The file is replaced atomically so a crash can't leave half an index.
+	public synchronized void save() {
+		if ( !dirty )
+			return;
+		try {
+			Path tempPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+			try ( BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8) ) {
+				for ( Map.Entry<String, Entry> entry : entries.entrySet() ) {
+					Entry e = entry.getValue();
+					writer.write(entry.getKey() + "\t" + e.size + "\t" + e.modified + "\t" + e.hash + "\t" +
+								 dashIfNull(e.etag) + "\t" + dashIfNull(e.lastModified));
+					writer.newLine();
+				}
+			}
+			Files.move(tempPath, indexPath, REPLACE_EXISTING, ATOMIC_MOVE);
+			dirty = false;
+		} catch ( IOException e ) {
+			if ( Verifier.debug )
+				System.out.println(e.toString());
+			System.out.printf("WARNING: Could not save library hash index.%n");
+		}
+	}
+
+	private static String nullIfDash(String field) {
+		return field.equals("-") ? null : field;
+	}
+
+	//Validators are header values, so they can't contain tabs, but strip them anyway to keep the file parseable
+	private static String dashIfNull(String field) {
+		return field == null || field.isEmpty() ? "-" : field.replace('\t', ' ');
+	}
+
+	private static class Entry {
+		final long size;
+		final long modified;
+		final String hash;
+		final String etag;
+		final String lastModified;
+
+		Entry(long size, long modified, String hash, String etag, String lastModified) {
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+	}
+
+}
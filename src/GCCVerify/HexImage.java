@@ -0,0 +1,259 @@
+/**
+ * HexImage.java holds the contents of an Intel hex firmware file as a sparse
+ * list of contiguous segments, so verification only has to look at (and read
+ * back) the parts of flash the firmware actually occupies.
+ *
+ * The parser works directly on the bytes of the file. Data is decoded into a
+ * single pool sized from the file length up front, so parsing creates no
+ * per-record or per-byte objects. Extended segment (02) and extended linear
+ * (04) address records are honored, so images above 64KB land at the right
+ * addresses.
+ *
+ * Contains the HexImage class and its exception
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class HexImage {
+
+	public static final int DATA = 0x00;
+	public static final int END_OF_FILE = 0x01;
+	public static final int EXTENDED_SEGMENT_ADDRESS = 0x02;
+	public static final int START_SEGMENT_ADDRESS = 0x03;
+	public static final int EXTENDED_LINEAR_ADDRESS = 0x04;
+	public static final int START_LINEAR_ADDRESS = 0x05;
+
+	//Segments are kept sorted by address; segment i is pool[segmentOffsets[i] .. segmentOffsets[i] + segmentLengths[i])
+	private int[] segmentAddresses = new int[16];
+	private int[] segmentOffsets = new int[16];
+	private int[] segmentLengths = new int[16];
+	private int segmentCount = 0;
+	private final byte[] pool;
+	private int poolLength = 0;
+	//Page ranges for the last page size asked for, computed once since images are shared between verifiers
+	private volatile PageRanges pageRanges;
+
+	private HexImage(int poolSize) {
+		pool = new byte[poolSize];
+	}
+
+	public static HexImage load(Path path) throws IOException {
+		//Read rather than map the file, since a mapped library file can't be replaced on Windows until it is unmapped
+		try ( FileChannel channel = FileChannel.open(path, StandardOpenOption.READ) ) {
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while ( buffer.hasRemaining() && channel.read(buffer) != -1 ) {}
+			buffer.flip();
+			return parse(buffer);
+		}
+	}
+
+	//Parses Intel hex records from the buffer's position to its limit
+	public static HexImage parse(ByteBuffer buffer) throws HexFormatException {
+		//Every data byte takes two characters, so half the input is an upper bound on the data
+		HexImage image = new HexImage(buffer.remaining() / 2);
+		int baseAddress = 0;
+		int line = 0;
+		while ( buffer.hasRemaining() ) {
+			byte b = buffer.get();
+			if ( b == '\r' || b == '\n' || b == ' ' || b == '\t' )
+				continue;
+			line++;
+			if ( b != ':' )
+				throw new HexFormatException(String.format("Expected ':' at line %d.", line));
+
+			int byteCount = readByte(buffer, line);
+			int offset = (readByte(buffer, line) << 8) | readByte(buffer, line);
+			int recordType = readByte(buffer, line);
+			int sum = byteCount + (offset >> 8) + (offset & 0xFF) + recordType;
+
+			switch ( recordType ) {
+				case DATA:
+					int poolStart = image.startData(baseAddress + offset, byteCount);
+					for ( int i = 0; i < byteCount; i++ ) {
+						int datum = readByte(buffer, line);
+						image.pool[poolStart + i] = (byte) datum;
+						sum += datum;
+					}
+					break;
+				case EXTENDED_SEGMENT_ADDRESS:
+				case EXTENDED_LINEAR_ADDRESS:
+					if ( byteCount != 2 )
+						throw new HexFormatException(String.format("Bad extended address record at line %d.", line));
+					int hi = readByte(buffer, line);
+					int lo = readByte(buffer, line);
+					sum += hi + lo;
+					baseAddress = recordType == EXTENDED_SEGMENT_ADDRESS ? ((hi << 8) | lo) << 4 : ((hi << 8) | lo) << 16;
+					break;
+				default:
+					//Start address and end of file records carry nothing we need
+					for ( int i = 0; i < byteCount; i++ )
+						sum += readByte(buffer, line);
+					break;
+			}
+
+			sum += readByte(buffer, line);
+			if ( (sum & 0xFF) != 0 )
+				throw new HexFormatException(String.format("Bad checksum at line %d.", line));
+			if ( recordType == END_OF_FILE )
+				break;
+		}
+		return image;
+	}
+
+	private static int readByte(ByteBuffer buffer, int line) throws HexFormatException {
+		if ( buffer.remaining() < 2 )
+			throw new HexFormatException(String.format("Record is truncated at line %d.", line));
+		return (nibble(buffer.get(), line) << 4) | nibble(buffer.get(), line);
+	}
+
+	private static int nibble(byte c, int line) throws HexFormatException {
+		if ( c >= '0' && c <= '9' )
+			return c - '0';
+		if ( c >= 'A' && c <= 'F' )
+			return c - 'A' + 10;
+		if ( c >= 'a' && c <= 'f' )
+			return c - 'a' + 10;
+		throw new HexFormatException(String.format("Invalid hex digit at line %d.", line));
+	}
+
+	//Reserves length bytes of pool for data at address and returns where they start in the pool
+	private int startData(int address, int length) {
+		int start = poolLength;
+		poolLength += length;
+		if ( length == 0 )
+			return start;
+		int last = segmentCount - 1;
+		if ( last >= 0 && segmentAddresses[last] + segmentLengths[last] == address && segmentOffsets[last] + segmentLengths[last] == start ) {
+			segmentLengths[last] += length;
+			return start;
+		}
+
+		if ( segmentCount == segmentAddresses.length ) {
+			segmentAddresses = grow(segmentAddresses);
+			segmentOffsets = grow(segmentOffsets);
+			segmentLengths = grow(segmentLengths);
+		}
+		//Records are almost always in order; insert to keep segments sorted when they aren't
+		int i = segmentCount;
+		while ( i > 0 && segmentAddresses[i - 1] > address ) {
+			segmentAddresses[i] = segmentAddresses[i - 1];
+			segmentOffsets[i] = segmentOffsets[i - 1];
+			segmentLengths[i] = segmentLengths[i - 1];
+			i--;
+		}
+		segmentAddresses[i] = address;
+		segmentOffsets[i] = start;
+		segmentLengths[i] = length;
+		segmentCount++;
+		return start;
+	}
+
+	private static int[] grow(int[] array) {
+		int[] grown = new int[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	public int segmentCount() {
+		return segmentCount;
+	}
+
+	public int segmentAddress(int segment) {
+		return segmentAddresses[segment];
+	}
+
+	public int segmentLength(int segment) {
+		return segmentLengths[segment];
+	}
+
+	//Read-only view of a segment's data
+	public ByteBuffer segmentData(int segment) {
+		return ByteBuffer.wrap(pool, segmentOffsets[segment], segmentLengths[segment]).slice().asReadOnlyBuffer();
+	}
+
+	//Total number of data bytes in the image
+	public int size() {
+		return poolLength;
+	}
+
+	//Returns the address of the first byte in data that differs from the image, or -1 if every covered byte matches.
+	//Bytes the image does not cover are ignored.
+	public int firstMismatch(int address, byte[] data, int offset, int length) {
+		//Find the first segment that ends after address
+		int lo = 0;
+		int hi = segmentCount;
+		while ( lo < hi ) {
+			int mid = (lo + hi) >>> 1;
+			if ( segmentAddresses[mid] + segmentLengths[mid] <= address )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		for ( int i = lo; i < segmentCount && segmentAddresses[i] < address + length; i++ ) {
+			int start = Math.max(address, segmentAddresses[i]);
+			int end = Math.min(address + length, segmentAddresses[i] + segmentLengths[i]);
+			int poolOffset = segmentOffsets[i] - segmentAddresses[i];
+			for ( int a = start; a < end; a++ ) {
+				if ( data[offset + a - address] != pool[poolOffset + a] )
+					return a;
+			}
+		}
+		return -1;
+	}
+
+	//Returns {start, length} pairs of page-aligned flash ranges covering every segment, merged where they touch
+	public List<int[]> pageRanges(int pageSize) {
+		PageRanges cached = pageRanges;
+		if ( cached != null && cached.pageSize == pageSize )
+			return cached.ranges;
+
+		List<int[]> ranges = new ArrayList<int[]>();
+		for ( int i = 0; i < segmentCount; i++ ) {
+			int start = segmentAddresses[i] / pageSize * pageSize;
+			int end = (segmentAddresses[i] + segmentLengths[i] + pageSize - 1) / pageSize * pageSize;
+			int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+			if ( last != null && start <= last[0] + last[1] )
+				last[1] = Math.max(last[1], end - last[0]);
+			else
+				ranges.add(new int[]{start, end - start});
+		}
+		pageRanges = new PageRanges(pageSize, Collections.unmodifiableList(ranges));
+		return pageRanges.ranges;
+	}
+
+	private static class PageRanges {
+		final int pageSize;
+		final List<int[]> ranges;
+
+		PageRanges(int pageSize, List<int[]> ranges) {
+			this.pageSize = pageSize;
+			this.ranges = ranges;
+		}
+	}
+
+}
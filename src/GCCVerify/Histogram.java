@@ -0,0 +1,102 @@
+/**
+ * Histogram.java is a small lock-free latency histogram. Values are counted in
+ * log-linear buckets (exact below 32, then 16 buckets per power of two), so
+ * recording is a couple of shifts and an atomic increment, and percentiles are
+ * accurate to within about 6%.
+ *
+ * Contains the Histogram class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class Histogram {
+
+	private static final int LINEAR = 32;
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	//Log2 of LINEAR, the first power of two counted in sub-buckets
+	private static final int FIRST_EXPONENT = 5;
+	private static final int BUCKETS = LINEAR + (63 - FIRST_EXPONENT) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if ( value < 0 )
+			value = 0;
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while ( value > (m = max.get()) && !max.compareAndSet(m, value) ) {}
+	}
+
+	private static int index(long value) {
+		if ( value < LINEAR )
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+		return LINEAR + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + sub;
+	}
+
+	//Largest value that falls in bucket i
+	private static long upperBound(int i) {
+		if ( i < LINEAR )
+			return i;
+		int exponent = (i - LINEAR) / SUB_BUCKETS + FIRST_EXPONENT;
+		long sub = (i - LINEAR) % SUB_BUCKETS;
+		return (1L << exponent) + ((sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	public long mean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+
+	//Value below which the given fraction (e.g. 0.95) of recorded values fall, or 0 if nothing was recorded.
+	//Reads are not atomic across buckets, so a percentile taken while values are being recorded is approximate.
+	public long percentile(double fraction) {
+		long n = count.get();
+		if ( n == 0 )
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(fraction * n));
+		long seen = 0;
+		for ( int i = 0; i < BUCKETS; i++ ) {
+			seen += counts.get(i);
+			if ( seen >= rank )
+				return Math.min(upperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+}
@@ -0,0 +1,132 @@
+/**
+ * ImageCache.java is a process-wide cache of parsed library firmware images.
+ * Entries are keyed by the manifest hash of the image, checked against the
+ * file's size and modification time on every lookup, and evicted least
+ * recently used first once the cached data exceeds a size limit. Verifiers
+ * running on several ports share the same parsed images.
+ *
+ * Contains the ImageCache class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ImageCache {
+
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+	private static final ImageCache shared = new ImageCache(DEFAULT_MAX_BYTES);
+
+	private final long maxBytes;
+	private long cachedBytes = 0;
+	//Access-ordered, so iteration starts at the least recently used entry
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	public ImageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public static ImageCache shared() {
+		return shared;
+	}
+
+	//Returns the parsed image at path if its SHA-256 matches hash, or null if it doesn't.
+	//The file is only read, hashed and parsed when there is no current entry for it.
+	public HexImage get(Path path, String hash) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		long size = attrs.size();
+		long modified = attrs.lastModifiedTime().toMillis();
+		String key = hash + ":" + path.toAbsolutePath().normalize().toString();
+		synchronized ( this ) {
+			Entry entry = entries.get(key);
+			if ( entry != null && entry.size == size && entry.modified == modified )
+				return entry.image;
+		}
+
+		//Hash and parse the same bytes so the file can't change in between
+		ByteBuffer buffer;
+		try ( FileChannel channel = FileChannel.open(path, StandardOpenOption.READ) ) {
+			buffer = ByteBuffer.allocate((int) channel.size());
+			while ( buffer.hasRemaining() && channel.read(buffer) != -1 ) {}
+			buffer.flip();
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(buffer.duplicate());
+			if ( !Verifier.bytesToHex(digest.digest()).equals(hash) )
+				return null;
+		} catch ( NoSuchAlgorithmException e ) {
+			throw new IOException("SHA256 hash algorithm is not available on your system.", e);
+		}
+		HexImage image = HexImage.parse(buffer);
+
+		synchronized ( this ) {
+			Entry old = entries.put(key, new Entry(image, size, modified));
+			if ( old != null )
+				cachedBytes -= old.image.size();
+			cachedBytes += image.size();
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while ( cachedBytes > maxBytes && entries.size() > 1 && it.hasNext() ) {
+				Map.Entry<String, Entry> eldest = it.next();
+				if ( eldest.getKey().equals(key) )
+					continue;
+				cachedBytes -= eldest.getValue().image.size();
+				it.remove();
+			}
+		}
+		return image;
+	}
+
+	//Drops every entry for path, e.g. after the library file was replaced
+	public synchronized void invalidate(Path path) {
+		String suffix = ":" + path.toAbsolutePath().normalize().toString();
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while ( it.hasNext() ) {
+			Map.Entry<String, Entry> entry = it.next();
+			if ( entry.getKey().endsWith(suffix) ) {
+				cachedBytes -= entry.getValue().image.size();
+				it.remove();
+			}
+		}
+	}
+
+	private static class Entry {
+		final HexImage image;
+		final long size;
+		final long modified;
+
+		Entry(HexImage image, long size, long modified) {
+			this.image = image;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+/**
+ * ImageResult.java is the outcome of checking a controller's firmware image
+ * against the library: whether it matched, how the controller's flash was
+ * obtained, and where the first differing byte is if it didn't match.
+ *
+ * Contains the ImageResult class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+public final class ImageResult {
+
+	//NOT_VERIFIED covers everything that stopped the comparison from running, e.g. no firmware name or a serial error
+	public static enum Verdict {MATCHED, MISMATCHED, NOT_IN_MANIFEST, NOT_PERMITTED, LIBRARY_ERROR, NOT_VERIFIED};
+
+	//How the controller's flash was checked: read during boot, challenged for a digest, streamed by the firmware or read from the bootloader
+	public static enum Method {NONE, CAPTURE, DIGEST, DUMP, BOOTLOADER};
+
+	public static final ImageResult NOT_VERIFIED = new ImageResult(Verdict.NOT_VERIFIED, Method.NONE, -1);
+	public static final ImageResult NOT_IN_MANIFEST = new ImageResult(Verdict.NOT_IN_MANIFEST, Method.NONE, -1);
+	public static final ImageResult NOT_PERMITTED = new ImageResult(Verdict.NOT_PERMITTED, Method.NONE, -1);
+	public static final ImageResult LIBRARY_ERROR = new ImageResult(Verdict.LIBRARY_ERROR, Method.NONE, -1);
+
+	public final Verdict verdict;
+	public final Method method;
+	//Address of the first byte that differs from the library image, or -1 if none is known (e.g. a digest mismatch)
+	public final int mismatchOffset;
+
+	private ImageResult(Verdict verdict, Method method, int mismatchOffset) {
+		this.verdict = verdict;
+		this.method = method;
+		this.mismatchOffset = mismatchOffset;
+	}
+
+	public static ImageResult matched(Method method) {
+		return new ImageResult(Verdict.MATCHED, method, -1);
+	}
+
+	public static ImageResult mismatched(Method method, int mismatchOffset) {
+		return new ImageResult(Verdict.MISMATCHED, method, mismatchOffset);
+	}
+
+	//The result of a comparison that stops at the first differing address, or -1 if there was none
+	public static ImageResult compared(Method method, int mismatchOffset) {
+		return mismatchOffset < 0 ? matched(method) : mismatched(method, mismatchOffset);
+	}
+
+	public boolean matched() {
+		return verdict == Verdict.MATCHED;
+	}
+
+}
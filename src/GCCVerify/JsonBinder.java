@@ -0,0 +1,426 @@
+/**
+ * JsonBinder.java decodes and encodes manifests and firmware parameters with
+ * gson's streaming JsonReader/JsonWriter and hand-written field mappings. Data
+ * is read straight from the file, URL or string without building an
+ * intermediate tree, and nothing is looked up by reflection, so there is no
+ * per-call Gson setup or warm-up cost.
+ *
+ * Contains the JsonBinder class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+
+public final class JsonBinder {
+
+	private JsonBinder() {}
+
+	//Reads a manifest. Malformed or mistyped JSON is reported as a JsonSyntaxException.
+	public static Manifest readManifest(Reader in) throws IOException {
+		JsonReader reader = newReader(in);
+		long timestamp = 0;
+		Manifest.FirmwareModSpec[] modSpecs = null;
+		Manifest.FirmwareImage[] firmwareImages = null;
+		try {
+			if ( reader.peek() == JsonToken.END_DOCUMENT )
+				throw new JsonSyntaxException("Manifest is empty.");
+			reader.beginObject();
+			while ( reader.hasNext() ) {
+				String field = reader.nextName();
+				if ( skipNull(reader) )
+					continue;
+				if ( field.equals("timestamp") ) {
+					timestamp = reader.nextLong();
+				}
+				else if ( field.equals("modSpecs") ) {
+					List<Manifest.FirmwareModSpec> specs = new ArrayList<Manifest.FirmwareModSpec>();
+					reader.beginArray();
+					while ( reader.hasNext() )
+						specs.add(readModSpec(reader));
+					reader.endArray();
+					modSpecs = specs.toArray(new Manifest.FirmwareModSpec[specs.size()]);
+				}
+				else if ( field.equals("firmwareImages") ) {
+					List<Manifest.FirmwareImage> images = new ArrayList<Manifest.FirmwareImage>();
+					reader.beginArray();
+					while ( reader.hasNext() )
+						images.add(readFirmwareImage(reader));
+					reader.endArray();
+					firmwareImages = images.toArray(new Manifest.FirmwareImage[images.size()]);
+				}
+				else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		} catch ( MalformedJsonException | EOFException | IllegalStateException | NumberFormatException e ) {
+			//Only real I/O failures should surface as IOExceptions
+			throw new JsonSyntaxException(e);
+		}
+		return new Manifest(timestamp, modSpecs, firmwareImages);
+	}
+
+	private static Manifest.FirmwareModSpec readModSpec(JsonReader reader) throws IOException {
+		String name = null;
+		boolean permitted = false;
+		Manifest.ModValueSpec[] valueSpecs = new Manifest.ModValueSpec[]{};
+		reader.beginObject();
+		while ( reader.hasNext() ) {
+			String field = reader.nextName();
+			if ( skipNull(reader) )
+				continue;
+			if ( field.equals("name") ) {
+				name = reader.nextString();
+			}
+			else if ( field.equals("permitted") ) {
+				permitted = nextBoolean(reader);
+			}
+			else if ( field.equals("valueSpecs") ) {
+				List<Manifest.ModValueSpec> specs = new ArrayList<Manifest.ModValueSpec>();
+				reader.beginArray();
+				while ( reader.hasNext() ) {
+					String valueName = null;
+					int maxVal = 0;
+					int minVal = 0;
+					reader.beginObject();
+					while ( reader.hasNext() ) {
+						String valueField = reader.nextName();
+						if ( skipNull(reader) )
+							continue;
+						if ( valueField.equals("name") )
+							valueName = reader.nextString();
+						else if ( valueField.equals("maxVal") )
+							maxVal = reader.nextInt();
+						else if ( valueField.equals("minVal") )
+							minVal = reader.nextInt();
+						else
+							reader.skipValue();
+					}
+					reader.endObject();
+					specs.add(new Manifest.ModValueSpec(valueName, maxVal, minVal));
+				}
+				reader.endArray();
+				valueSpecs = specs.toArray(new Manifest.ModValueSpec[specs.size()]);
+			}
+			else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return new Manifest.FirmwareModSpec(name, permitted, valueSpecs);
+	}
+
+	private static Manifest.FirmwareImage readFirmwareImage(JsonReader reader) throws IOException {
+		String name = null;
+		boolean permitted = false;
+		String hash = null;
+		String url = null;
+		reader.beginObject();
+		while ( reader.hasNext() ) {
+			String field = reader.nextName();
+			if ( skipNull(reader) )
+				continue;
+			if ( field.equals("name") )
+				name = reader.nextString();
+			else if ( field.equals("permitted") )
+				permitted = nextBoolean(reader);
+			else if ( field.equals("hash") )
+				hash = reader.nextString();
+			else if ( field.equals("url") )
+				url = reader.nextString();
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		return new Manifest.FirmwareImage(name, permitted, hash, url);
+	}
+
+	public static void writeManifest(Writer out, Manifest manifest) throws IOException {
+		JsonWriter writer = newWriter(out);
+		writer.beginObject();
+		writer.name("timestamp").value(manifest.timestamp);
+		if ( manifest.modSpecs != null ) {
+			writer.name("modSpecs").beginArray();
+			for ( Manifest.FirmwareModSpec modSpec : manifest.modSpecs ) {
+				writer.beginObject();
+				writeString(writer, "name", modSpec.name);
+				writer.name("permitted").value(modSpec.permitted);
+				if ( modSpec.valueSpecs != null ) {
+					writer.name("valueSpecs").beginArray();
+					for ( Manifest.ModValueSpec valueSpec : modSpec.valueSpecs ) {
+						writer.beginObject();
+						writeString(writer, "name", valueSpec.name);
+						writer.name("maxVal").value(valueSpec.maxVal);
+						writer.name("minVal").value(valueSpec.minVal);
+						writer.endObject();
+					}
+					writer.endArray();
+				}
+				writer.endObject();
+			}
+			writer.endArray();
+		}
+		if ( manifest.firmwareImages != null ) {
+			writer.name("firmwareImages").beginArray();
+			for ( Manifest.FirmwareImage image : manifest.firmwareImages ) {
+				writer.beginObject();
+				writeString(writer, "name", image.name);
+				writer.name("permitted").value(image.permitted);
+				writeString(writer, "hash", image.hash);
+				writeString(writer, "url", image.url);
+				writer.endObject();
+			}
+			writer.endArray();
+		}
+		writer.endObject();
+		writer.flush();
+	}
+
+	//Parses the firmware's parameter response. Malformed or mistyped JSON is reported as a JsonSyntaxException.
+	public static Verifier.FirmwareParams readFirmwareParams(String json) throws JsonSyntaxException {
+		Verifier.FirmwareParams params = new Verifier.FirmwareParams();
+		JsonReader reader = newReader(new StringReader(json));
+		try {
+			if ( reader.peek() == JsonToken.END_DOCUMENT )
+				throw new JsonSyntaxException("JSON string was empty");
+			reader.beginObject();
+			while ( reader.hasNext() ) {
+				String field = reader.nextName();
+				if ( skipNull(reader) )
+					continue;
+				if ( field.equals("name") ) {
+					params.name = reader.nextString();
+				}
+				else if ( field.equals("major_version") ) {
+					params.major_version = reader.nextInt();
+				}
+				else if ( field.equals("minor_version") ) {
+					params.minor_version = reader.nextInt();
+				}
+				else if ( field.equals("mods") ) {
+					List<Verifier.FirmwareMod> mods = new ArrayList<Verifier.FirmwareMod>();
+					reader.beginArray();
+					while ( reader.hasNext() )
+						mods.add(readFirmwareMod(reader));
+					reader.endArray();
+					params.mods = mods.toArray(new Verifier.FirmwareMod[mods.size()]);
+				}
+				else if ( field.equals("capabilities") ) {
+					List<String> capabilities = new ArrayList<String>();
+					reader.beginArray();
+					while ( reader.hasNext() )
+						capabilities.add(reader.nextString());
+					reader.endArray();
+					params.capabilities = capabilities.toArray(new String[capabilities.size()]);
+				}
+				else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		} catch ( IOException | IllegalStateException | NumberFormatException e ) {
+			throw new JsonSyntaxException(e);
+		}
+		return params;
+	}
+
+	private static Verifier.FirmwareMod readFirmwareMod(JsonReader reader) throws IOException {
+		Verifier.FirmwareMod mod = new Verifier.FirmwareMod();
+		reader.beginObject();
+		while ( reader.hasNext() ) {
+			String field = reader.nextName();
+			if ( skipNull(reader) )
+				continue;
+			if ( field.equals("name") ) {
+				mod.name = reader.nextString();
+			}
+			else if ( field.equals("enabled") ) {
+				mod.enabled = nextBoolean(reader);
+			}
+			else if ( field.equals("values") ) {
+				List<Verifier.FirmwareModValue> values = new ArrayList<Verifier.FirmwareModValue>();
+				reader.beginArray();
+				while ( reader.hasNext() ) {
+					Verifier.FirmwareModValue value = new Verifier.FirmwareModValue();
+					reader.beginObject();
+					while ( reader.hasNext() ) {
+						String valueField = reader.nextName();
+						if ( skipNull(reader) )
+							continue;
+						if ( valueField.equals("name") )
+							value.name = reader.nextString();
+						else if ( valueField.equals("value") )
+							value.value = reader.nextInt();
+						else
+							reader.skipValue();
+					}
+					reader.endObject();
+					values.add(value);
+				}
+				reader.endArray();
+				mod.values = values.toArray(new Verifier.FirmwareModValue[values.size()]);
+			}
+			else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return mod;
+	}
+
+	public static void writeFirmwareParams(Writer out, Verifier.FirmwareParams params) throws IOException {
+		JsonWriter writer = newWriter(out);
+		writer.beginObject();
+		writeString(writer, "name", params.name);
+		writer.name("major_version").value(params.major_version);
+		writer.name("minor_version").value(params.minor_version);
+		writer.name("mods").beginArray();
+		for ( Verifier.FirmwareMod mod : params.mods ) {
+			writer.beginObject();
+			writeString(writer, "name", mod.name);
+			writer.name("enabled").value(mod.enabled);
+			writer.name("values").beginArray();
+			for ( Verifier.FirmwareModValue value : mod.values ) {
+				writer.beginObject();
+				writeString(writer, "name", value.name);
+				writer.name("value").value(value.value);
+				writer.endObject();
+			}
+			writer.endArray();
+			writer.endObject();
+		}
+		writer.endArray();
+		writer.name("capabilities").beginArray();
+		for ( String capability : params.capabilities )
+			writer.value(capability);
+		writer.endArray();
+		writer.endObject();
+		writer.flush();
+	}
+
+	//Parses the firmware's answer to a digest challenge, {"digest":"<8 hex digits>"}, into the CRC value
+	public static long readDigest(String json) throws JsonSyntaxException {
+		String value = readField(json, "digest");
+		try {
+			long digest = value == null ? -1 : Long.parseLong(value, 16);
+			if ( digest < 0 || digest > 0xFFFFFFFFL )
+				throw new JsonSyntaxException("Response did not contain a digest.");
+			return digest;
+		} catch ( NumberFormatException e ) {
+			throw new JsonSyntaxException(e);
+		}
+	}
+
+	//Parses the firmware's answer to a dump request, {"baud":<rate>}. Returns 0 if it didn't accept one.
+	public static int readDumpBaudRate(String json) throws JsonSyntaxException {
+		String value = readField(json, "baud");
+		try {
+			return value == null ? 0 : Integer.parseInt(value);
+		} catch ( NumberFormatException e ) {
+			throw new JsonSyntaxException(e);
+		}
+	}
+
+	//Returns the named top-level field of a single-object response as a string, or null if it isn't there
+	private static String readField(String json, String name) throws JsonSyntaxException {
+		JsonReader reader = newReader(new StringReader(json));
+		String value = null;
+		try {
+			if ( reader.peek() == JsonToken.END_DOCUMENT )
+				throw new JsonSyntaxException("JSON string was empty");
+			reader.beginObject();
+			while ( reader.hasNext() ) {
+				String field = reader.nextName();
+				if ( skipNull(reader) )
+					continue;
+				//nextString() also accepts numbers, as their text
+				if ( field.equals(name) )
+					value = reader.nextString();
+				else
+					reader.skipValue();
+			}
+			reader.endObject();
+		} catch ( IOException | IllegalStateException e ) {
+			throw new JsonSyntaxException(e);
+		}
+		return value;
+	}
+
+	public static String toJson(Manifest manifest) {
+		StringWriter out = new StringWriter();
+		try {
+			writeManifest(out, manifest);
+		} catch ( IOException e ) {} //StringWriter doesn't throw
+		return out.toString();
+	}
+
+	public static String toJson(Verifier.FirmwareParams params) {
+		StringWriter out = new StringWriter();
+		try {
+			writeFirmwareParams(out, params);
+		} catch ( IOException e ) {}
+		return out.toString();
+	}
+
+	//Same leniency as Gson.fromJson, which is what these documents used to be parsed with
+	private static JsonReader newReader(Reader in) {
+		JsonReader reader = new JsonReader(in);
+		reader.setLenient(true);
+		return reader;
+	}
+
+	//Same layout as GsonBuilder.setPrettyPrinting()
+	private static JsonWriter newWriter(Writer out) {
+		JsonWriter writer = new JsonWriter(out);
+		writer.setIndent("  ");
+		return writer;
+	}
+
+	//Consumes a JSON null so the field keeps its default, like Gson does
+	private static boolean skipNull(JsonReader reader) throws IOException {
+		if ( reader.peek() == JsonToken.NULL ) {
+			reader.nextNull();
+			return true;
+		}
+		return false;
+	}
+
+	//Gson accepts "true"/"false" strings for booleans, so keep doing that
+	private static boolean nextBoolean(JsonReader reader) throws IOException {
+		if ( reader.peek() == JsonToken.STRING )
+			return Boolean.parseBoolean(reader.nextString());
+		return reader.nextBoolean();
+	}
+
+	//Gson leaves null fields out
+	private static void writeString(JsonWriter writer, String name, String value) throws IOException {
+		if ( value != null )
+			writer.name(name).value(value);
+	}
+
+}
@@ -0,0 +1,132 @@
+/**
+ * LibraryDownloader.java fetches firmware images for the library. Downloads
+ * run on the calling thread (LibrarySync runs several at once) with connect
+ * and read timeouts, are made conditional on the ETag/Last-Modified of the
+ * copy already on disk, and are written to a temporary file that only
+ * replaces the library image once its hash matches the manifest. The hash
+ * index and image cache it keeps up to date are passed in, so it can be run
+ * against a scratch library and a local HTTP server.
+ *
+ * Contains the LibraryDownloader class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import static java.nio.file.StandardCopyOption.*;
+
+public class LibraryDownloader {
+
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+	public static final int DEFAULT_READ_TIMEOUT = 10000;
+	public static final int MAX_IMAGE_SIZE = 1000000; //1MB max
+
+	public static enum Result {DOWNLOADED, NOT_MODIFIED, HASH_MISMATCH, FAILED};
+
+	private final HashIndex index;
+	private final ImageCache cache;
+	private final int connectTimeout;
+	private final int readTimeout;
+
+	//Keeps the shared library index and cache up to date
+	public LibraryDownloader() {
+		this(HashIndex.shared(), ImageCache.shared(), DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+	}
+
+	public LibraryDownloader(HashIndex index, ImageCache cache, int connectTimeout, int readTimeout) {
+		this.index = index;
+		this.cache = cache;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	//Downloads url to path on the calling thread. path is only replaced if the download matches hash.
+	public Result download(Path path, String url, String hash) {
+		Path tempPath = path.resolveSibling(path.getFileName() + ".part");
+		try {
+			URLConnection connection = new URL(url).openConnection();
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			//Only ask for the file if it changed since the copy we have was downloaded
+			String[] validators = index.validators(path);
+			if ( validators != null ) {
+				if ( validators[0] != null )
+					connection.setRequestProperty("If-None-Match", validators[0]);
+				if ( validators[1] != null )
+					connection.setRequestProperty("If-Modified-Since", validators[1]);
+			}
+
+			if ( connection instanceof HttpURLConnection ) {
+				int status = ((HttpURLConnection) connection).getResponseCode();
+				if ( status == HttpURLConnection.HTTP_NOT_MODIFIED ) {
+					//The server still has what we have, so it's only good if what we have is good
+					((HttpURLConnection) connection).disconnect();
+					return hash.equals(index.hash(path)) ? Result.NOT_MODIFIED : Result.HASH_MISMATCH;
+				}
+				if ( status != HttpURLConnection.HTTP_OK ) {
+					if ( Verifier.debug )
+						System.out.printf("%s returned HTTP %d.%n", url, status);
+					((HttpURLConnection) connection).disconnect();
+					return Result.FAILED;
+				}
+			}
+
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			try ( InputStream in = new DigestInputStream(connection.getInputStream(), digest);
+				  OutputStream out = Files.newOutputStream(tempPath) ) {
+				byte[] buffer = new byte[8192];
+				long total = 0;
+				int n;
+				while ( (n = in.read(buffer)) != -1 ) {
+					total += n;
+					if ( total > MAX_IMAGE_SIZE )
+						throw new IOException("Image is larger than " + MAX_IMAGE_SIZE + " bytes.");
+					out.write(buffer, 0, n);
+				}
+			}
+			if ( !Verifier.bytesToHex(digest.digest()).equals(hash) ) {
+				Files.deleteIfExists(tempPath);
+				return Result.HASH_MISMATCH;
+			}
+
+			//Forget the old file's hash first, so nothing can pair it with the new contents if the move fails halfway
+			index.invalidate(path);
+			Files.move(tempPath, path, REPLACE_EXISTING, ATOMIC_MOVE);
+			cache.invalidate(path);
+			index.record(path, hash, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+			return Result.DOWNLOADED;
+		} catch ( IOException | NoSuchAlgorithmException e ) {
+			if ( Verifier.debug )
+				System.out.println(e.toString());
+			try {
+				Files.deleteIfExists(tempPath);
+			} catch ( IOException e2 ) {}
+			return Result.FAILED;
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+/**
+ * LibrarySync.java brings the firmware library in line with the manifest in
+ * the background instead of blocking startup. Every image gets one sync task
+ * (verify the local copy, download it if needed); the tasks are prefetched on
+ * a small pool, and a verifier that needs an image before its turn comes runs
+ * that image's task itself.
+ *
+ * Contains the LibrarySync class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+public class LibrarySync {
+
+	//How many images are fetched at once
+	public static final int DEFAULT_CONCURRENCY = 4;
+
+	private static final LibrarySync shared = new LibrarySync();
+
+	private final ConcurrentHashMap<String, FutureTask<Boolean>> tasks = new ConcurrentHashMap<String, FutureTask<Boolean>>();
+	private final LibraryDownloader downloader = new LibraryDownloader();
+	private volatile boolean started = false;
+	private ExecutorService executor;
+
+	public static LibrarySync shared() {
+		return shared;
+	}
+
+	//Queues a sync of every image in the manifest and returns immediately
+	public synchronized void prefetch(Manifest.FirmwareImage[] images) {
+		if ( executor == null ) {
+			executor = Executors.newFixedThreadPool(DEFAULT_CONCURRENCY, new ThreadFactory() {
+				private int count = 0;
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "GCCVerify-sync-" + count++);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		started = true;
+		if ( images == null )
+			return;
+		for ( Manifest.FirmwareImage img : images )
+			executor.execute(task(img));
+	}
+
+	//Makes sure the library copy of img is present and matches the manifest, fetching it now if the
+	//background sync hasn't got to it yet. Returns true right away if no sync was started (offline mode).
+	public boolean ensure(Manifest.FirmwareImage img) throws InterruptedException {
+		if ( !started )
+			return true;
+		FutureTask<Boolean> task = task(img);
+		//No-op if the prefetch pool is already running it or has finished it
+		task.run();
+		boolean ready;
+		try {
+			ready = task.get();
+		} catch ( ExecutionException e ) {
+			ready = false;
+		}
+		//Let the next verification of this firmware try again (e.g. once the network is back)
+		if ( !ready )
+			tasks.remove(key(img), task);
+		return ready;
+	}
+
+	//Returns true if img has already been synced successfully, or if there is no sync to wait for
+	public boolean isReady(Manifest.FirmwareImage img) {
+		if ( !started )
+			return true;
+		FutureTask<Boolean> task = tasks.get(key(img));
+		try {
+			return task != null && task.isDone() && task.get();
+		} catch ( InterruptedException | ExecutionException e ) {
+			return false;
+		}
+	}
+
+	//One task per image name and hash, so a manifest update that changes the hash syncs the image again
+	private FutureTask<Boolean> task(final Manifest.FirmwareImage img) {
+		String key = key(img);
+		FutureTask<Boolean> task = tasks.get(key);
+		if ( task == null ) {
+			FutureTask<Boolean> created = new FutureTask<Boolean>(new Callable<Boolean>() {
+				public Boolean call() {
+					return sync(img);
+				}
+			});
+			task = tasks.putIfAbsent(key, created);
+			if ( task == null )
+				task = created;
+		}
+		return task;
+	}
+
+	private static String key(Manifest.FirmwareImage img) {
+		return img.name + ":" + img.hash;
+	}
+
+	private boolean sync(Manifest.FirmwareImage img) {
+		Path imgPath = Paths.get("lib", img.name + ".hex");
+		if ( Files.isReadable(imgPath) && Verifier.verifyLibFirmwareImage(imgPath, img.hash) ) {
+			HashIndex.shared().save();
+			return true;
+		}
+		LibraryDownloader.Result result = downloader.download(imgPath, img.url, img.hash);
+		HashIndex.shared().save();
+		if ( Verifier.debug )
+			System.out.printf("Library sync of %s: %s%n", img.name, result);
+		return result == LibraryDownloader.Result.DOWNLOADED || result == LibraryDownloader.Result.NOT_MODIFIED;
+	}
+
+}
@@ -24,22 +24,35 @@
 
 package GCCVerify;
 import java.net.URL;
+import java.net.URLConnection;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.util.stream.Collectors;
-import com.google.gson.*;
+import com.google.gson.JsonSyntaxException;
 
-public class Manifest {
-	public long timestamp = 0;
-	public FirmwareModSpec[] modSpecs;
-	public FirmwareImage[] firmwareImages;
+public final class Manifest {
+	//A manifest is an immutable snapshot; loading a new one never changes one that is already in use
+	public final long timestamp;
+	public final FirmwareModSpec[] modSpecs;
+	public final FirmwareImage[] firmwareImages;
+	//Indexed form of modSpecs and firmwareImages
+	public final ManifestRules rules;
 	public static boolean debug = false;
 
-	public Manifest() {}
+	public static final Manifest EMPTY = new Manifest(0, null, null);
+	public static final int CONNECT_TIMEOUT = 5000;
+	public static final int READ_TIMEOUT = 10000;
 
-	public void load(Path path) throws IOException {
-		try {
-			load(new String(Files.readAllBytes(path)));
+	public Manifest(long timestamp, FirmwareModSpec[] modSpecs, FirmwareImage[] firmwareImages) {
+		this.timestamp = timestamp;
+		this.modSpecs = modSpecs;
+		this.firmwareImages = firmwareImages;
+		rules = new ManifestRules(modSpecs, firmwareImages);
+	}
+
+	public static Manifest load(Path path) throws IOException {
+		try ( Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8) ) {
+			return load(reader);
 		}
 		catch ( NoSuchFileException e ) {
 			System.out.printf("Could not find file %s.%n", path.toString());
@@ -47,47 +60,73 @@ public class Manifest {
 		}
 	}
 
-	public void load(URL url) throws IOException {
-		BufferedReader br = new BufferedReader(new InputStreamReader(url.openStream()));
-		String json = br.lines().collect(Collectors.joining("\n"));
-	 	br.close();
-	 	load(json);
+	public static Manifest load(URL url) throws IOException {
+		URLConnection connection = url.openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		try ( Reader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) ) {
+			return load(reader);
+		}
 	}
 
-	public void load(String json) throws JsonSyntaxException {
+	public static Manifest load(String json) throws JsonSyntaxException {
 		if ( json.length() == 0 )
 			throw new JsonSyntaxException("String is empty.");
+		try {
+			return load(new StringReader(json));
+		} catch ( IOException e ) {
+			//StringReader doesn't throw
+			throw new JsonSyntaxException(e);
+		}
+	}
 
-		Gson gson = new GsonBuilder().setPrettyPrinting().create();
-		Manifest temp = gson.fromJson(json, Manifest.class);
-		timestamp = temp.timestamp;
-		modSpecs = temp.modSpecs;
-		firmwareImages = temp.firmwareImages;
+	//Decodes the manifest as it streams in
+	public static Manifest load(Reader reader) throws IOException {
+		Manifest manifest = JsonBinder.readManifest(reader);
 
 		if ( debug )
-			System.out.println(gson.toJson(this));
+			System.out.println(JsonBinder.toJson(manifest));
 
-		if ( this.timestamp == 0 )
+		if ( manifest.timestamp == 0 )
 			throw new JsonSyntaxException("Manifest JSON did not contain timestamp.");
+		return manifest;
 	}
 
-	class FirmwareModSpec {
-		public String name;
-		public boolean permitted;
-		public ModValueSpec[] valueSpecs = new ModValueSpec[]{};
+	static final class FirmwareModSpec {
+		public final String name;
+		public final boolean permitted;
+		public final ModValueSpec[] valueSpecs;
+
+		FirmwareModSpec(String name, boolean permitted, ModValueSpec[] valueSpecs) {
+			this.name = name;
+			this.permitted = permitted;
+			this.valueSpecs = valueSpecs;
+		}
 	}
 
-	class ModValueSpec {
-		public String name;
-		public int maxVal;
-		public int minVal;
+	static final class ModValueSpec {
+		public final String name;
+		public final int maxVal;
+		public final int minVal;
+
+		ModValueSpec(String name, int maxVal, int minVal) {
+			this.name = name;
+			this.maxVal = maxVal;
+			this.minVal = minVal;
+		}
 	}
 
-	class FirmwareImage {
-		public String name;
-		public boolean permitted;
-		public String hash;
-		public String url;
+	static final class FirmwareImage {
+		public final String name;
+		public final boolean permitted;
+		public final String hash;
+		public final String url;
+
+		FirmwareImage(String name, boolean permitted, String hash, String url) {
+			this.name = name;
+			this.permitted = permitted;
+			this.hash = hash;
+			this.url = url;
+		}
 	}
 }
-
@@ -0,0 +1,110 @@
+/**
+ * ManifestRules.java is the compiled, immutable form of a manifest that the
+ * Verifier checks controllers against. Mods, mod values and firmware images
+ * are indexed by name, and value limits are kept in primitive arrays, so
+ * validating a controller's parameters is a handful of hash lookups.
+ *
+ * Contains the ManifestRules class and its per-mod rule object
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public final class ManifestRules {
+
+	private final Map<String, ModRule> mods;
+	private final Map<String, Manifest.FirmwareImage> images;
+
+	ManifestRules(Manifest.FirmwareModSpec[] modSpecs, Manifest.FirmwareImage[] firmwareImages) {
+		Map<String, ModRule> mods = new HashMap<String, ModRule>();
+		if ( modSpecs != null ) {
+			for ( Manifest.FirmwareModSpec modSpec : modSpecs ) {
+				//Keep the first entry for a name, like the old linear scan did
+				if ( !mods.containsKey(modSpec.name) )
+					mods.put(modSpec.name, new ModRule(modSpec));
+			}
+		}
+		Map<String, Manifest.FirmwareImage> images = new HashMap<String, Manifest.FirmwareImage>();
+		if ( firmwareImages != null ) {
+			for ( Manifest.FirmwareImage image : firmwareImages ) {
+				if ( !images.containsKey(image.name) )
+					images.put(image.name, image);
+			}
+		}
+		this.mods = Collections.unmodifiableMap(mods);
+		this.images = Collections.unmodifiableMap(images);
+	}
+
+	//Returns the rule for a mod, or null if the manifest doesn't know it
+	public ModRule mod(String name) {
+		return mods.get(name);
+	}
+
+	//Returns the library image with the given name, or null if the manifest doesn't list it
+	public Manifest.FirmwareImage image(String name) {
+		return images.get(name);
+	}
+
+	public static final class ModRule {
+		public final String name;
+		public final boolean permitted;
+		private final Map<String, Integer> valueIndex;
+		private final int[] minVals;
+		private final int[] maxVals;
+
+		private ModRule(Manifest.FirmwareModSpec modSpec) {
+			name = modSpec.name;
+			permitted = modSpec.permitted;
+			Map<String, Integer> valueIndex = new HashMap<String, Integer>();
+			Manifest.ModValueSpec[] valueSpecs = modSpec.valueSpecs != null ? modSpec.valueSpecs : new Manifest.ModValueSpec[]{};
+			minVals = new int[valueSpecs.length];
+			maxVals = new int[valueSpecs.length];
+			for ( int i = 0; i < valueSpecs.length; i++ ) {
+				if ( !valueIndex.containsKey(valueSpecs[i].name) )
+					valueIndex.put(valueSpecs[i].name, i);
+				minVals[i] = valueSpecs[i].minVal;
+				maxVals[i] = valueSpecs[i].maxVal;
+			}
+			this.valueIndex = Collections.unmodifiableMap(valueIndex);
+		}
+
+		//Returns the index of a value for use with inRange(), or -1 if the mod has no such value
+		public int valueIndex(String valueName) {
+			Integer idx = valueIndex.get(valueName);
+			return idx == null ? -1 : idx;
+		}
+
+		public boolean inRange(int valueIdx, int value) {
+			return value >= minVals[valueIdx] && value <= maxVals[valueIdx];
+		}
+
+		public int minVal(int valueIdx) {
+			return minVals[valueIdx];
+		}
+
+		public int maxVal(int valueIdx) {
+			return maxVals[valueIdx];
+		}
+	}
+
+}
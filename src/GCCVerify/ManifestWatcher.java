@@ -0,0 +1,108 @@
+/**
+ * ManifestWatcher.java watches lib/manifest.json and hot-reloads it when it
+ * changes on disk, so an updated manifest takes effect without restarting.
+ * The reload publishes a new immutable snapshot; verifications that are
+ * already running finish against the one they started with.
+ *
+ * Contains the ManifestWatcher class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+public class ManifestWatcher implements Runnable {
+
+	//Editors and saveRemoteManifestToLocal write the file in more than one step; wait for it to settle
+	public static final int SETTLE_TIME = 250;
+
+	private final Path dir;
+	private final Path fileName;
+	private final boolean syncLibrary;
+	private WatchService watchService;
+	private Thread thread;
+
+	public ManifestWatcher(Path manifestPath, boolean syncLibrary) {
+		Path absolute = manifestPath.toAbsolutePath();
+		dir = absolute.getParent();
+		fileName = absolute.getFileName();
+		this.syncLibrary = syncLibrary;
+	}
+
+	public synchronized void start() throws IOException {
+		if ( thread != null )
+			return;
+		watchService = dir.getFileSystem().newWatchService();
+		//Watch the directory rather than the file so replacing the file (e.g. an atomic move) is seen too
+		dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+		thread = new Thread(this, "GCCVerify-manifest-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		if ( thread == null )
+			return;
+		thread.interrupt();
+		try {
+			watchService.close();
+		} catch ( IOException e ) {}
+		thread = null;
+	}
+
+	public void run() {
+		try {
+			while ( !Thread.currentThread().isInterrupted() ) {
+				WatchKey key = watchService.take();
+				boolean changed = touchesManifest(key);
+				//Collapse the burst of events a single save produces into one reload
+				while ( changed && (key = watchService.poll(SETTLE_TIME, TimeUnit.MILLISECONDS)) != null )
+					touchesManifest(key);
+				if ( changed )
+					reload();
+			}
+		} catch ( InterruptedException | ClosedWatchServiceException e ) {
+			//Stopped
+		}
+	}
+
+	//Drains the key's events and returns true if any of them were for the manifest
+	private boolean touchesManifest(WatchKey key) {
+		boolean touched = false;
+		for ( WatchEvent<?> event : key.pollEvents() ) {
+			if ( event.kind() == OVERFLOW || fileName.equals(event.context()) )
+				touched = true;
+		}
+		key.reset();
+		return touched;
+	}
+
+	private void reload() {
+		if ( !Verifier.reloadLocalManifest() )
+			return;
+		//Bring in any images the new manifest added or changed
+		if ( syncLibrary )
+			LibrarySync.shared().prefetch(Verifier.activeManifest().firmwareImages);
+	}
+
+}
@@ -0,0 +1,209 @@
+/**
+ * Metrics.java collects how long each phase of every verification took, in
+ * histograms kept overall, per serial port and per firmware, so station
+ * bottlenecks can be found while it is in use. Snapshots can be rendered as
+ * a text table or JSON, on demand or periodically.
+ *
+ * Contains the Metrics class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import com.google.gson.stream.JsonWriter;
+import static java.nio.file.StandardCopyOption.*;
+
+public class Metrics {
+
+	//Histograms per phase, plus one for the whole verification
+	private static final int TOTAL = Verifier.Phase.values().length;
+	private static final String ALL = "all";
+
+	private static final Metrics shared = new Metrics();
+
+	private final Histogram[] all = newHistograms();
+	private final ConcurrentHashMap<String, Histogram[]> byPort = new ConcurrentHashMap<String, Histogram[]>();
+	private final ConcurrentHashMap<String, Histogram[]> byFirmware = new ConcurrentHashMap<String, Histogram[]>();
+	private final long started = System.currentTimeMillis();
+	private ScheduledExecutorService dumper;
+	private Path dumpFile;
+
+	public static Metrics shared() {
+		return shared;
+	}
+
+	private static Histogram[] newHistograms() {
+		Histogram[] histograms = new Histogram[TOTAL + 1];
+		for ( int i = 0; i < histograms.length; i++ )
+			histograms[i] = new Histogram();
+		return histograms;
+	}
+
+	//Records one verification. phaseMillis[i] < 0 means phase i didn't run. firmware may be null if it wasn't identified.
+	public void record(String portName, String firmware, long[] phaseMillis, long totalMillis) {
+		Histogram[] port = byPort.computeIfAbsent(portName, k -> newHistograms());
+		Histogram[] fw = firmware == null || firmware.isEmpty() ? null : byFirmware.computeIfAbsent(firmware, k -> newHistograms());
+		for ( int i = 0; i < TOTAL; i++ ) {
+			if ( phaseMillis[i] < 0 )
+				continue;
+			all[i].record(phaseMillis[i]);
+			port[i].record(phaseMillis[i]);
+			if ( fw != null )
+				fw[i].record(phaseMillis[i]);
+		}
+		all[TOTAL].record(totalMillis);
+		port[TOTAL].record(totalMillis);
+		if ( fw != null )
+			fw[TOTAL].record(totalMillis);
+	}
+
+	//Current statistics, overall first, then per port and per firmware in name order
+	public List<Row> snapshot() {
+		List<Row> rows = new ArrayList<Row>();
+		addRows(rows, ALL, ALL, all);
+		for ( String port : new TreeSet<String>(byPort.keySet()) )
+			addRows(rows, "port", port, byPort.get(port));
+		for ( String firmware : new TreeSet<String>(byFirmware.keySet()) )
+			addRows(rows, "firmware", firmware, byFirmware.get(firmware));
+		return rows;
+	}
+
+	private static void addRows(List<Row> rows, String scope, String name, Histogram[] histograms) {
+		for ( int i = 0; i <= TOTAL; i++ ) {
+			Histogram h = histograms[i];
+			if ( h.count() == 0 )
+				continue;
+			String phase = i == TOTAL ? "total" : Verifier.Phase.values()[i].name().toLowerCase();
+			rows.add(new Row(scope, name, phase, h.count(), h.percentile(0.50), h.percentile(0.95), h.percentile(0.99), h.max(), h.mean()));
+		}
+	}
+
+	public String toText() {
+		StringBuilder text = new StringBuilder();
+		Formatter formatter = new Formatter(text);
+		formatter.format("Verification timings (ms) over %ds:%n", (System.currentTimeMillis() - started) / 1000);
+		formatter.format("%-30s %-9s %7s %7s %7s %7s %7s %7s%n", "Scope", "Phase", "Count", "p50", "p95", "p99", "Max", "Mean");
+		for ( Row row : snapshot() ) {
+			String scope = row.scope.equals(ALL) ? ALL : row.scope + " " + row.name;
+			formatter.format("%-30s %-9s %7d %7d %7d %7d %7d %7d%n", scope, row.phase, row.count, row.p50, row.p95, row.p99, row.max, row.mean);
+		}
+		return text.toString();
+	}
+
+	public String toJson() {
+		StringWriter out = new StringWriter();
+		try {
+			JsonWriter writer = new JsonWriter(out);
+			writer.beginObject();
+			writer.name("uptime_s").value((System.currentTimeMillis() - started) / 1000);
+			writer.name("timings_ms");
+			writer.beginArray();
+			for ( Row row : snapshot() ) {
+				writer.beginObject();
+				writer.name("scope").value(row.scope);
+				writer.name("name").value(row.name);
+				writer.name("phase").value(row.phase);
+				writer.name("count").value(row.count);
+				writer.name("p50").value(row.p50);
+				writer.name("p95").value(row.p95);
+				writer.name("p99").value(row.p99);
+				writer.name("max").value(row.max);
+				writer.name("mean").value(row.mean);
+				writer.endObject();
+			}
+			writer.endArray();
+			writer.endObject();
+			writer.close();
+		} catch ( IOException e ) {} //StringWriter doesn't throw
+		return out.toString();
+	}
+
+	//Every intervalSeconds, writes the JSON snapshot to file (replaced atomically), or prints the text table if file is null
+	public synchronized void startDump(int intervalSeconds, Path file) {
+		if ( dumper != null )
+			return;
+		dumpFile = file;
+		dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "GCCVerify-metrics");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		dumper.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				dump();
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	//Stops the periodic dump after one last one
+	public synchronized void stopDump() {
+		if ( dumper == null )
+			return;
+		dumper.shutdownNow();
+		dumper = null;
+		dump();
+	}
+
+	private synchronized void dump() {
+		if ( dumpFile == null ) {
+			System.out.print(toText());
+			return;
+		}
+		try {
+			Path tempPath = dumpFile.resolveSibling(dumpFile.getFileName() + ".tmp");
+			Files.write(tempPath, toJson().getBytes(StandardCharsets.UTF_8));
+			Files.move(tempPath, dumpFile, REPLACE_EXISTING, ATOMIC_MOVE);
+		} catch ( IOException e ) {
+			if ( Verifier.debug )
+				System.out.println(e.toString());
+		}
+	}
+
+	public static class Row {
+		public final String scope;
+		public final String name;
+		public final String phase;
+		public final long count;
+		public final long p50;
+		public final long p95;
+		public final long p99;
+		public final long max;
+		public final long mean;
+
+		Row(String scope, String name, String phase, long count, long p50, long p95, long p99, long max, long mean) {
+			this.scope = scope;
+			this.name = name;
+			this.phase = phase;
+			this.count = count;
+			this.p50 = p50;
+			this.p95 = p95;
+			this.p99 = p99;
+			this.max = max;
+			this.mean = mean;
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+/**
+ * ModCheck.java is the outcome of checking one firmware mod reported by a
+ * controller against the manifest: what the controller reported, and which
+ * rule (if any) each part of it broke. It holds no rendered text; see
+ * ResultRenderer for that.
+ *
+ * Contains the ModCheck class and its per-value result object
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public final class ModCheck {
+
+	//Worst problem found with the mod, from least to most severe
+	public static enum Verdict {OK, UNKNOWN_VALUE, ILLEGAL_VALUES, ILLEGAL_MOD, UNKNOWN_MOD};
+
+	public final String name;
+	public final boolean enabled;
+	public final Verdict verdict;
+	public final List<ValueCheck> values;
+
+	private ModCheck(String name, boolean enabled, Verdict verdict, ValueCheck[] values) {
+		this.name = name;
+		this.enabled = enabled;
+		this.verdict = verdict;
+		this.values = Collections.unmodifiableList(Arrays.asList(values));
+	}
+
+	//Checks a reported mod against its rule, or reports it as unknown if the manifest has no rule for it (rule is null)
+	static ModCheck check(Verifier.FirmwareMod mod, ManifestRules.ModRule rule) {
+		ValueCheck[] values = new ValueCheck[mod.values.length];
+		boolean unknownValue = false;
+		boolean illegalValue = false;
+		for ( int i = 0; i < values.length; i++ ) {
+			Verifier.FirmwareModValue value = mod.values[i];
+			int valIdx = rule == null ? -1 : rule.valueIndex(value.name);
+			if ( rule == null ) {
+				values[i] = new ValueCheck(value.name, value.value, ValueCheck.Verdict.UNCHECKED, 0, 0);
+			}
+			else if ( valIdx == -1 ) {
+				unknownValue = true;
+				values[i] = new ValueCheck(value.name, value.value, ValueCheck.Verdict.UNKNOWN, 0, 0);
+			}
+			else {
+				boolean inRange = rule.inRange(valIdx, value.value);
+				illegalValue |= !inRange;
+				values[i] = new ValueCheck(value.name, value.value, inRange ? ValueCheck.Verdict.OK : ValueCheck.Verdict.OUT_OF_RANGE,
+										   rule.minVal(valIdx), rule.maxVal(valIdx));
+			}
+		}
+
+		Verdict verdict;
+		if ( rule == null )
+			verdict = Verdict.UNKNOWN_MOD;
+		else if ( mod.enabled && !rule.permitted )
+			verdict = Verdict.ILLEGAL_MOD;
+		else if ( illegalValue )
+			verdict = Verdict.ILLEGAL_VALUES;
+		else if ( unknownValue )
+			verdict = Verdict.UNKNOWN_VALUE;
+		else
+			verdict = Verdict.OK;
+		return new ModCheck(mod.name, mod.enabled, verdict, values);
+	}
+
+	public boolean passed() {
+		return verdict == Verdict.OK;
+	}
+
+	public static final class ValueCheck {
+
+		//UNCHECKED values belong to a mod the manifest doesn't know
+		public static enum Verdict {OK, UNKNOWN, OUT_OF_RANGE, UNCHECKED};
+
+		public final String name;
+		public final int value;
+		public final Verdict verdict;
+		//The manifest's limits, only meaningful for OK and OUT_OF_RANGE values
+		public final int minVal;
+		public final int maxVal;
+
+		private ValueCheck(String name, int value, Verdict verdict, int minVal, int maxVal) {
+			this.name = name;
+			this.value = value;
+			this.verdict = verdict;
+			this.minVal = minVal;
+			this.maxVal = maxVal;
+		}
+
+		public boolean hasLimits() {
+			return verdict == Verdict.OK || verdict == Verdict.OUT_OF_RANGE;
+		}
+	}
+
+}
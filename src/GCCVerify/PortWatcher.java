@@ -0,0 +1,148 @@
+/**
+ * PortWatcher.java polls the list of serial ports and reports devices as they
+ * are plugged in and unplugged, so a verification can start as soon as a
+ * controller is attached. A port has to stay present (or absent) for a short
+ * settle time before it is reported, which rides out USB enumeration and
+ * loose connectors.
+ *
+ * Contains the PortWatcher class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.util.*;
+import java.util.concurrent.*;
+import jssc.SerialPortList;
+
+public class PortWatcher implements Runnable {
+
+	public static final int POLL_INTERVAL = 250;
+	public static final int SETTLE_TIME = 1000;
+
+	public static interface Listener {
+		void portAttached(String portName);
+		void portRemoved(String portName);
+	}
+
+	private final Listener listener;
+	private final String portSpec;
+	//Ports that have been reported as attached
+	private final Set<String> known = new HashSet<String>();
+	//Ports whose presence changed, and when that was first seen
+	private final Map<String, Long> appeared = new HashMap<String, Long>();
+	private final Map<String, Long> disappeared = new HashMap<String, Long>();
+	private ScheduledExecutorService executor;
+
+	//portSpec limits which ports are watched, in the same form as batch mode's -p (null for every port)
+	public PortWatcher(String portSpec, Listener listener) {
+		this.portSpec = portSpec;
+		this.listener = listener;
+	}
+
+	//Starts polling. Ports that are already attached count as known unless includeAttached is set.
+	public synchronized void start(boolean includeAttached) {
+		if ( executor != null )
+			return;
+		if ( !includeAttached )
+			known.addAll(Arrays.asList(ports()));
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "GCCVerify-port-watcher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.scheduleWithFixedDelay(this, 0, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if ( executor != null )
+			executor.shutdownNow();
+		executor = null;
+	}
+
+	public void run() {
+		try {
+			poll(new HashSet<String>(Arrays.asList(ports())), System.currentTimeMillis());
+		} catch ( RuntimeException e ) {
+			//An exception would cancel the schedule; skip this poll instead
+			if ( Verifier.debug )
+				System.out.println(e.toString());
+		}
+	}
+
+	private void poll(Set<String> present, long now) {
+		List<String> attached = new ArrayList<String>();
+		List<String> removed = new ArrayList<String>();
+		synchronized ( this ) {
+			for ( String portName : present ) {
+				disappeared.remove(portName);
+				if ( !known.contains(portName) && settled(appeared, portName, now) ) {
+					known.add(portName);
+					attached.add(portName);
+				}
+			}
+			//Forget ports that vanished again before they settled
+			appeared.keySet().retainAll(present);
+
+			Iterator<String> it = known.iterator();
+			while ( it.hasNext() ) {
+				String portName = it.next();
+				if ( !present.contains(portName) && settled(disappeared, portName, now) ) {
+					it.remove();
+					removed.add(portName);
+				}
+			}
+		}
+		//Call out without holding the lock
+		for ( String portName : removed )
+			listener.portRemoved(portName);
+		for ( String portName : attached )
+			listener.portAttached(portName);
+	}
+
+	//Records when the change to portName was first seen and returns true once it has lasted SETTLE_TIME
+	private static boolean settled(Map<String, Long> since, String portName, long now) {
+		Long first = since.get(portName);
+		if ( first == null ) {
+			since.put(portName, now);
+			return false;
+		}
+		if ( now - first < SETTLE_TIME )
+			return false;
+		since.remove(portName);
+		return true;
+	}
+
+	private String[] ports() {
+		String[] portNames = SerialPortList.getPortNames();
+		if ( portSpec == null )
+			return portNames;
+		//Only keep the listed ports that are actually attached
+		List<String> watched = new ArrayList<String>();
+		List<String> available = Arrays.asList(portNames);
+		for ( String portName : Terminal.matchPorts(portSpec, portNames) ) {
+			if ( available.contains(portName) )
+				watched.add(portName);
+		}
+		return watched.toArray(new String[watched.size()]);
+	}
+
+}
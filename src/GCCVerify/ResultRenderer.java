@@ -0,0 +1,218 @@
+/**
+ * ResultRenderer.java turns a controller's verification result into output:
+ * the box-art report the console has always printed, a JSON object for batch
+ * records and the daemon, or one compact line for logs. Results are plain
+ * data until one of these is called, so runs whose output nobody asks for
+ * never build it.
+ *
+ * Contains the ResultRenderer class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.io.IOException;
+import java.util.Formatter;
+import com.google.gson.stream.JsonWriter;
+
+public final class ResultRenderer {
+
+	//Box headers indexed by ModCheck.Verdict
+	private static final String[] MOD_HEADERS = {
+		"|         --Mod Info--         |",
+		"| **Unknown Mod Value Found**  |",
+		"| **Illegal Mod Values Found** |",
+		"|     **Illegal Mod Found**    |",
+		"|     **Unknown Mod Found**    |"
+	};
+	private static final String RULE = "--------------------------------";
+	private static final String BLANK = "|                              |";
+	//Width of a box line up to its closing "|"
+	private static final int BOX_WIDTH = 31;
+	//What %n writes
+	private static final String NEWLINE = System.lineSeparator();
+
+	private ResultRenderer() {}
+
+	//The console report: a box per mod, then the parameter and image verdicts and the time taken
+	public static String text(Station.StationResult result) {
+		StringBuilder text = new StringBuilder(256 * result.paramResult.mods.size() + 1024);
+		appendMods(text, result.paramResult);
+		appendVerdict(text, "|  Firmware Mod Verification   |", result.paramResult.succeeded);
+		appendVerdict(text, "|  Firmware Image Verification |", result.imageResult.matched());
+		new Formatter(text).format("Verification took %.2fs.%n%n", result.elapsed);
+		return text.toString();
+	}
+
+	//Just the mod boxes
+	public static String text(Verifier.VerifyParamsResult params) {
+		StringBuilder text = new StringBuilder(256 * params.mods.size() + 128);
+		appendMods(text, params);
+		return text.toString();
+	}
+
+	//Boxes are mostly fixed lines, so they are appended directly; a Formatter call costs far more than the line itself
+	private static void appendMods(StringBuilder text, Verifier.VerifyParamsResult params) {
+		if ( params.noMods ) {
+			line(text, RULE);
+			line(text, "|   --Firmware has no mods--   |");
+			line(text, RULE);
+			return;
+		}
+		for ( ModCheck mod : params.mods ) {
+			line(text, RULE);
+			line(text, MOD_HEADERS[mod.verdict.ordinal()]);
+			line(text, RULE);
+			line(text, "|  Name:                       |");
+			//"|    %-20s      |"
+			int start = text.length();
+			text.append("|    ").append(mod.name);
+			pad(text, start, 25);
+			line(text, "      |");
+			line(text, BLANK);
+			line(text, mod.enabled ? "|  Enabled: Yes                |" : "|  Enabled: No                 |");
+			line(text, BLANK);
+			line(text, "|  Values:                     |");
+			for ( ModCheck.ValueCheck value : mod.values ) {
+				//"|    %-26s|" of "name: value"
+				start = text.length();
+				text.append("|    ").append(value.name).append(": ").append(value.value);
+				pad(text, start, BOX_WIDTH);
+				line(text, "|");
+			}
+			line(text, RULE);
+			text.append(NEWLINE);
+		}
+	}
+
+	private static void appendVerdict(StringBuilder text, String title, boolean succeeded) {
+		line(text, RULE);
+		line(text, title);
+		line(text, RULE);
+		line(text, BLANK);
+		if ( succeeded ) {
+			line(text, BLANK);
+			line(text, "|           SUCCESS!           |");
+			line(text, BLANK);
+		}
+		else {
+			line(text, "|         ************         |");
+			line(text, "|         * FAILURE! *         |");
+			line(text, "|         ************         |");
+		}
+		line(text, BLANK);
+		line(text, RULE);
+		text.append(NEWLINE);
+	}
+
+	private static void line(StringBuilder text, String line) {
+		text.append(line).append(NEWLINE);
+	}
+
+	//Pads what was appended since start with spaces to width characters, like %-<width>s
+	private static void pad(StringBuilder text, int start, int width) {
+		for ( int i = text.length() - start; i < width; i++ )
+			text.append(' ');
+	}
+
+	//One line of space-separated key=value pairs, listing only what went wrong, e.g.
+	//port=COM3 platform=ARDUINO firmware=Hax-2.2 result=FAIL params=FAIL violations=mod1:illegal_values[value0=150] image=MATCHED method=DIGEST ms=1840
+	public static String compact(Station.StationResult result) {
+		StringBuilder line = new StringBuilder(160);
+		line.append("port=").append(result.portName)
+			.append(" platform=").append(result.platform.name())
+			.append(" firmware=").append(result.firmwareName == null || result.firmwareName.isEmpty() ? "-" : result.firmwareName)
+			.append(" result=").append(result.passed() ? "PASS" : "FAIL")
+			.append(" params=").append(result.paramResult.succeeded ? "PASS" : "FAIL");
+		boolean first = true;
+		for ( ModCheck mod : result.paramResult.mods ) {
+			if ( mod.passed() )
+				continue;
+			line.append(first ? " violations=" : ",").append(mod.name).append(':').append(mod.verdict.name().toLowerCase());
+			first = false;
+			boolean firstValue = true;
+			for ( ModCheck.ValueCheck value : mod.values ) {
+				if ( value.verdict != ModCheck.ValueCheck.Verdict.UNKNOWN && value.verdict != ModCheck.ValueCheck.Verdict.OUT_OF_RANGE )
+					continue;
+				line.append(firstValue ? '[' : ';').append(value.name).append('=').append(value.value);
+				firstValue = false;
+			}
+			if ( !firstValue )
+				line.append(']');
+		}
+		line.append(" image=").append(result.imageResult.verdict.name());
+		if ( result.imageResult.method != ImageResult.Method.NONE )
+			line.append(" method=").append(result.imageResult.method.name());
+		if ( result.imageResult.mismatchOffset >= 0 )
+			line.append(" offset=").append(result.imageResult.mismatchOffset);
+		line.append(" ms=").append(Math.round(result.elapsed * 1000));
+		return line.toString();
+	}
+
+	//Writes the result's fields into the object the writer is in, so other JSON output can embed them
+	public static void writeFields(JsonWriter writer, Station.StationResult result) throws IOException {
+		writer.name("port").value(result.portName);
+		writer.name("platform").value(result.platform.name());
+		writer.name("firmware").value(result.firmwareName == null || result.firmwareName.isEmpty() ? null : result.firmwareName);
+		writer.name("params_verified").value(result.paramResult.succeeded);
+		writer.name("firmware_verified").value(result.imageResult.matched());
+		writer.name("passed").value(result.passed());
+		writer.name("no_mods").value(result.paramResult.noMods);
+		writer.name("mods");
+		writer.beginArray();
+		for ( ModCheck mod : result.paramResult.mods ) {
+			writer.beginObject();
+			writer.name("name").value(mod.name);
+			writer.name("enabled").value(mod.enabled);
+			writer.name("verdict").value(mod.verdict.name().toLowerCase());
+			writer.name("values");
+			writer.beginArray();
+			for ( ModCheck.ValueCheck value : mod.values ) {
+				writer.beginObject();
+				writer.name("name").value(value.name);
+				writer.name("value").value(value.value);
+				writer.name("verdict").value(value.verdict.name().toLowerCase());
+				if ( value.hasLimits() ) {
+					writer.name("min").value(value.minVal);
+					writer.name("max").value(value.maxVal);
+				}
+				writer.endObject();
+			}
+			writer.endArray();
+			writer.endObject();
+		}
+		writer.endArray();
+		writer.name("image");
+		writer.beginObject();
+		writer.name("verdict").value(result.imageResult.verdict.name().toLowerCase());
+		writer.name("method").value(result.imageResult.method.name().toLowerCase());
+		if ( result.imageResult.mismatchOffset >= 0 )
+			writer.name("mismatch_offset").value(result.imageResult.mismatchOffset);
+		else
+			writer.name("mismatch_offset").nullValue();
+		writer.endObject();
+		writer.name("timings_ms");
+		writer.beginObject();
+		for ( Verifier.Phase phase : Verifier.Phase.values() )
+			writer.name(phase.name().toLowerCase()).value(result.phaseMillis(phase));
+		writer.name("total").value(Math.round(result.elapsed * 1000));
+		writer.endObject();
+	}
+
+}
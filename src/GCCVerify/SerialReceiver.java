@@ -0,0 +1,101 @@
+/**
+ * SerialReceiver.java collects the firmware's JSON response from jssc RXCHAR
+ * events into a reusable buffer, tracking the opening "{" and terminating
+ * "\r\n" as bytes arrive so the Verifier can block until the response is
+ * complete instead of polling the port.
+ *
+ * Contains the SerialReceiver class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.nio.charset.StandardCharsets;
+
+public class SerialReceiver implements Transport.Listener {
+
+	private byte[] buffer = new byte[512];
+	private int length = 0;
+	private int jsonStart = -1;
+	private int terminator = -1;
+
+	//Discards anything received so far
+	public synchronized void clear() {
+		length = 0;
+		jsonStart = -1;
+		terminator = -1;
+	}
+
+	public synchronized void dataReceived(byte[] bytes) {
+		if ( length + bytes.length > buffer.length ) {
+			byte[] grown = new byte[Math.max(buffer.length * 2, length + bytes.length)];
+			System.arraycopy(buffer, 0, grown, 0, length);
+			buffer = grown;
+		}
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+
+		//Only scan the new bytes (plus the one before them, in case "\r\n" straddles two events)
+		for ( int i = Math.max(length - 1, 0); i < length + bytes.length && terminator < 0; i++ ) {
+			if ( jsonStart < 0 ) {
+				if ( buffer[i] == '{' )
+					jsonStart = i;
+			}
+			else if ( buffer[i] == '\r' && i + 1 < length + bytes.length && buffer[i + 1] == '\n' ) {
+				terminator = i;
+			}
+		}
+		length += bytes.length;
+		notifyAll();
+	}
+
+	//Blocks until at least one byte has been received or timeout ms have passed
+	public synchronized boolean awaitData(long timeout) throws InterruptedException {
+		long endTime = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while ( length == 0 && remaining > 0 ) {
+			wait(remaining);
+			remaining = endTime - System.currentTimeMillis();
+		}
+		return length > 0;
+	}
+
+	//Blocks until "\r\n" has been received after a "{" or timeout ms have passed
+	public synchronized boolean awaitTerminator(long timeout) throws InterruptedException {
+		long endTime = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while ( terminator < 0 && remaining > 0 ) {
+			wait(remaining);
+			remaining = endTime - System.currentTimeMillis();
+		}
+		return terminator >= 0;
+	}
+
+	public synchronized int received() {
+		return length;
+	}
+
+	//Returns the data from the first "{" up to (not including) the terminator, or to the end if none arrived
+	public synchronized String json() {
+		if ( jsonStart < 0 )
+			return "";
+		int end = terminator >= 0 ? terminator : length;
+		return new String(buffer, jsonStart, end - jsonStart, StandardCharsets.UTF_8);
+	}
+
+}
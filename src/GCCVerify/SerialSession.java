@@ -0,0 +1,125 @@
+/**
+ * SerialSession.java owns a controller's serial port for a whole
+ * verification. The port is opened once, the board is reset once, and the
+ * parameter exchange, bootloader and readback all run over the same open
+ * port, switching baud rate and between the line-oriented receiver and
+ * direct binary reads as needed.
+ *
+ * Contains the SerialSession class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import jssc.*;
+
+public class SerialSession implements AutoCloseable {
+
+	//Same DTR/RTS pulse avrdude's arduino programmer uses
+	private static final int RESET_PULSE = 250;
+	private static final int RESET_SETTLE = 50;
+
+	private final Transport serialPort;
+	private final SerialReceiver receiver = new SerialReceiver();
+	private int dataBits;
+	private int stopBits;
+	private int parity;
+	private boolean listening = false;
+
+	public SerialSession(Transport serialPort) {
+		this.serialPort = serialPort;
+	}
+
+	public void open(int baudRate, int dataBits, int stopBits, int parity) throws SerialPortException {
+		this.dataBits = dataBits;
+		this.stopBits = stopBits;
+		this.parity = parity;
+		if ( !serialPort.isOpened() )
+			serialPort.openPort();
+		setBaudRate(baudRate);
+	}
+
+	public boolean isOpen() {
+		return serialPort.isOpened();
+	}
+
+	public String portName() {
+		return serialPort.getPortName();
+	}
+
+	public Transport port() {
+		return serialPort;
+	}
+
+	//Switches baud rate without closing the port, keeping the other parameters
+	public void setBaudRate(int baudRate) throws SerialPortException {
+		if ( !serialPort.setParams(baudRate, dataBits, stopBits, parity) )
+			throw new SerialPortException(serialPort.getPortName(), "setParams", "Could not set " + baudRate + " baud.");
+	}
+
+	//Resets the board (mainly for Arduino, whose bootloader then runs briefly before the application).
+	//Returns the time the reset was released.
+	public long reset() throws SerialPortException, InterruptedException {
+		serialPort.setDTR(false);
+		serialPort.setRTS(false);
+		Thread.sleep(RESET_PULSE);
+		serialPort.setDTR(true);
+		serialPort.setRTS(true);
+		long released = System.currentTimeMillis();
+		Thread.sleep(RESET_SETTLE);
+		return released;
+	}
+
+	//The line-oriented receiver, listening on the port
+	public SerialReceiver receiver() throws SerialPortException {
+		if ( !listening ) {
+			serialPort.purgeInput();
+			receiver.clear();
+			serialPort.addListener(receiver);
+			listening = true;
+		}
+		return receiver;
+	}
+
+	//Stops the receiver so binary protocols can read the port directly
+	public void detach() throws SerialPortException {
+		if ( listening ) {
+			serialPort.removeListener();
+			listening = false;
+		}
+	}
+
+	//Talks to the bootloader, which must have just been started by reset()
+	public Stk500 bootloader() throws SerialPortException {
+		detach();
+		return new Stk500(serialPort);
+	}
+
+	public void close() {
+		listening = false;
+		try {
+			if ( serialPort.isOpened() )
+				serialPort.closePort();
+		} catch ( SerialPortException e ) {
+			if ( Verifier.debug )
+				System.out.println(e.toString());
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+/**
+ * SerialTransport.java is the Transport for real controllers, on a jssc
+ * serial port.
+ *
+ * Contains the SerialTransport class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import jssc.*;
+
+public class SerialTransport implements Transport {
+
+	public static final Transport.Factory FACTORY = new Transport.Factory() {
+		public Transport create(String portName) {
+			return new SerialTransport(portName);
+		}
+	};
+
+	private final SerialPort serialPort;
+
+	public SerialTransport(String portName) {
+		serialPort = new SerialPort(portName);
+	}
+
+	public String getPortName() {
+		return serialPort.getPortName();
+	}
+
+	public boolean isOpened() {
+		return serialPort.isOpened();
+	}
+
+	public void openPort() throws SerialPortException {
+		serialPort.openPort();
+	}
+
+	public boolean closePort() throws SerialPortException {
+		return serialPort.closePort();
+	}
+
+	public boolean setParams(int baudRate, int dataBits, int stopBits, int parity) throws SerialPortException {
+		return serialPort.setParams(baudRate, dataBits, stopBits, parity);
+	}
+
+	public boolean setDTR(boolean enabled) throws SerialPortException {
+		return serialPort.setDTR(enabled);
+	}
+
+	public boolean setRTS(boolean enabled) throws SerialPortException {
+		return serialPort.setRTS(enabled);
+	}
+
+	public void purgeInput() throws SerialPortException {
+		serialPort.purgePort(SerialPort.PURGE_RXCLEAR);
+	}
+
+	public void writeBytes(byte[] bytes) throws SerialPortException {
+		serialPort.writeBytes(bytes);
+	}
+
+	public byte[] readBytes(int count, int timeout) throws SerialPortException, SerialPortTimeoutException {
+		return serialPort.readBytes(count, timeout);
+	}
+
+	public void addListener(final Listener listener) throws SerialPortException {
+		serialPort.addEventListener(new SerialPortEventListener() {
+			public void serialEvent(SerialPortEvent event) {
+				if ( !event.isRXCHAR() || event.getEventValue() <= 0 )
+					return;
+				try {
+					byte[] bytes = serialPort.readBytes(event.getEventValue());
+					if ( bytes != null )
+						listener.dataReceived(bytes);
+				} catch ( SerialPortException e ) {}
+			}
+		}, SerialPort.MASK_RXCHAR);
+	}
+
+	public void removeListener() throws SerialPortException {
+		serialPort.removeEventListener();
+	}
+
+}
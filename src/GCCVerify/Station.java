@@ -0,0 +1,154 @@
+/**
+ * Station.java runs one Verifier per serial port at the same time, so several
+ * controllers plugged into a hub are verified in roughly the time it takes
+ * to verify one.
+ *
+ * Contains the Station class and its per-port result object
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class Station {
+
+	public static final int DEFAULT_MAX_PORTS = 8;
+
+	private final ExecutorService executor;
+	private final Transport.Factory transports;
+
+	public Station(int maxPorts) {
+		this(maxPorts, SerialTransport.FACTORY);
+	}
+
+	//Opens ports through transports instead of as serial ports, e.g. to run against emulated controllers
+	public Station(int maxPorts, Transport.Factory transports) {
+		this.transports = transports;
+		executor = Executors.newFixedThreadPool(maxPorts, new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "GCCVerify-port-" + count++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public Future<StationResult> submit(String portName, Verifier.Platform platform) {
+		return submit(portName, platform, null);
+	}
+
+	//Same as submit(portName, platform), also handing the result to listener (if not null) on the worker thread when it's ready
+	public Future<StationResult> submit(final String portName, final Verifier.Platform platform, final ResultListener listener) {
+		//Construct on the calling thread so the shared manifest is loaded once before the workers start
+		final Verifier verifier = new Verifier(transports.create(portName));
+		verifier.selectPlatform(platform);
+		return executor.submit(new Callable<StationResult>() {
+			public StationResult call() {
+				ByteArrayOutputStream log = new ByteArrayOutputStream();
+				verifier.setOutput(new PrintStream(log, true));
+				long start = System.currentTimeMillis();
+				Verifier.VerifyParamsResult paramResult;
+				ImageResult imageResult;
+				try {
+					paramResult = verifier.verifyParams();
+					imageResult = verifier.verifyFirmwareImage();
+				} finally {
+					verifier.close();
+				}
+				float elapsed = ((float) (System.currentTimeMillis() - start))/1000;
+				StationResult result = StationResult.of(portName, platform, verifier, paramResult, imageResult, elapsed, log.toString());
+				if ( listener != null )
+					listener.resultReady(result);
+				return result;
+			}
+		});
+	}
+
+	//Verifies every port in parallel and returns the results in the same order as portNames
+	public List<StationResult> verifyAll(String[] portNames, Verifier.Platform platform) throws InterruptedException {
+		List<Future<StationResult>> futures = new ArrayList<Future<StationResult>>();
+		for ( String portName : portNames )
+			futures.add(submit(portName, platform));
+
+		List<StationResult> results = new ArrayList<StationResult>();
+		for ( Future<StationResult> future : futures ) {
+			try {
+				results.add(future.get());
+			} catch ( ExecutionException e ) {
+				//Verifier handles its own exceptions, so this only happens on an Error
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		return results;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	public static interface ResultListener {
+		void resultReady(StationResult result);
+	}
+
+	//Everything a verification found out about one controller. Render it with ResultRenderer.
+	public static final class StationResult {
+		public final String portName;
+		public final Verifier.Platform platform;
+		public final String firmwareName;
+		public final Verifier.VerifyParamsResult paramResult;
+		public final ImageResult imageResult;
+		public final float elapsed;
+		private final long[] phaseMillis;
+		public final String log;
+
+		public StationResult(String portName, Verifier.Platform platform, String firmwareName, Verifier.VerifyParamsResult paramResult,
+							 ImageResult imageResult, float elapsed, long[] phaseMillis, String log) {
+			this.portName = portName;
+			this.platform = platform;
+			this.firmwareName = firmwareName;
+			this.paramResult = paramResult;
+			this.imageResult = imageResult;
+			this.elapsed = elapsed;
+			this.phaseMillis = phaseMillis.clone();
+			this.log = log;
+		}
+
+		//Takes the firmware name and phase timings from the verifier that produced the results
+		public static StationResult of(String portName, Verifier.Platform platform, Verifier verifier, Verifier.VerifyParamsResult paramResult,
+									   ImageResult imageResult, float elapsed, String log) {
+			long[] phaseMillis = new long[Verifier.Phase.values().length];
+			for ( Verifier.Phase phase : Verifier.Phase.values() )
+				phaseMillis[phase.ordinal()] = verifier.phaseMillis(phase);
+			return new StationResult(portName, platform, verifier.firmwareName(), paramResult, imageResult, elapsed, phaseMillis, log);
+		}
+
+		public boolean passed() {
+			return paramResult.succeeded && imageResult.matched();
+		}
+
+		public long phaseMillis(Verifier.Phase phase) {
+			return phaseMillis[phase.ordinal()];
+		}
+	}
+}
@@ -0,0 +1,323 @@
+/**
+ * StationBenchmark.java measures how many controllers a station can verify
+ * per hour. It drives a number of emulated controllers, each running a
+ * permitted library image and reporting legal mods, through the full
+ * parameter and firmware image verification at a chosen concurrency, and
+ * reports throughput, latency percentiles, CPU time and heap use.
+ *
+ * Contains the StationBenchmark class and its exception
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.google.gson.stream.JsonWriter;
+
+public class StationBenchmark {
+
+	public static final String PORT_PREFIX = "emu";
+	private static final int HEAP_SAMPLE_INTERVAL = 100;
+	//Library images are named <firmware>-<major>.<minor>
+	private static final Pattern IMAGE_NAME = Pattern.compile("(.+)-(\\d+)\\.(\\d+)");
+
+	private final int controllers;
+	private final int concurrency;
+	private final Verifier.Platform platform;
+
+	public StationBenchmark(int controllers, int concurrency, Verifier.Platform platform) {
+		this.controllers = controllers;
+		this.concurrency = concurrency;
+		this.platform = platform;
+	}
+
+	public Result run() throws StationBenchmarkException, InterruptedException {
+		//Every controller runs the first permitted image that is in the library, so the image check has something to pass
+		Manifest manifest = Verifier.activeManifest();
+		Manifest.FirmwareImage img = null;
+		HexImage image = null;
+		Matcher name = null;
+		if ( manifest.firmwareImages != null ) {
+			for ( Manifest.FirmwareImage candidate : manifest.firmwareImages ) {
+				Matcher matcher = IMAGE_NAME.matcher(candidate.name);
+				if ( !candidate.permitted || !matcher.matches() || !LibrarySync.shared().ensure(candidate) )
+					continue;
+				try {
+					image = ImageCache.shared().get(Paths.get("lib", candidate.name + ".hex"), candidate.hash);
+				} catch ( IOException e ) {
+					if ( Verifier.debug )
+						System.out.println(e.toString());
+				}
+				if ( image != null ) {
+					img = candidate;
+					name = matcher;
+					break;
+				}
+			}
+		}
+		if ( img == null )
+			throw new StationBenchmarkException("No permitted library image is available to emulate.");
+		String response = response(manifest, name.group(1), Integer.parseInt(name.group(2)), Integer.parseInt(name.group(3)));
+
+		final Map<String, EmulatedController> ports = new LinkedHashMap<String, EmulatedController>();
+		for ( int i = 0; i < controllers; i++ ) {
+			EmulatedController controller = new EmulatedController(PORT_PREFIX + i);
+			controller.loadImage(image);
+			controller.setResponse(response);
+			ports.put(controller.getPortName(), controller);
+		}
+		Station station = new Station(Math.min(concurrency, controllers), new Transport.Factory() {
+			public Transport create(String portName) {
+				return ports.get(portName);
+			}
+		});
+
+		System.out.printf("Verifying %d emulated controller(s) running %s, %d at a time...%n%n", controllers, img.name, Math.min(concurrency, controllers));
+		Resources resources = new Resources();
+		final int progressStep = Math.max(1, controllers / 10);
+		final int[] finished = {0};
+		List<Future<Station.StationResult>> futures = new ArrayList<Future<Station.StationResult>>();
+		long start = System.nanoTime();
+		for ( String portName : ports.keySet() ) {
+			futures.add(station.submit(portName, platform, new Station.ResultListener() {
+				public void resultReady(Station.StationResult result) {
+					synchronized ( finished ) {
+						if ( ++finished[0] % progressStep == 0 || finished[0] == controllers )
+							System.out.printf("%d/%d done%n", finished[0], controllers);
+					}
+				}
+			}));
+		}
+		List<Station.StationResult> results = new ArrayList<Station.StationResult>();
+		try {
+			for ( Future<Station.StationResult> future : futures )
+				results.add(future.get());
+		} catch ( ExecutionException e ) {
+			//Verifier handles its own exceptions, so this only happens on an Error
+			throw new RuntimeException(e.getCause());
+		} finally {
+			station.shutdown();
+		}
+		long wallNanos = System.nanoTime() - start;
+		resources.stop();
+		return new Result(this, img.name, image.size(), results, wallNanos, resources);
+	}
+
+	//Parameters for the image's firmware with every manifest mod enabled if permitted, at the lowest value allowed
+	private static String response(Manifest manifest, String firmware, int major, int minor) {
+		StringWriter out = new StringWriter();
+		try {
+			JsonWriter writer = new JsonWriter(out);
+			writer.beginObject();
+			writer.name("name").value(firmware);
+			writer.name("major_version").value(major);
+			writer.name("minor_version").value(minor);
+			writer.name("mods").beginArray();
+			if ( manifest.modSpecs != null ) {
+				for ( Manifest.FirmwareModSpec modSpec : manifest.modSpecs ) {
+					writer.beginObject();
+					writer.name("name").value(modSpec.name);
+					writer.name("enabled").value(modSpec.permitted);
+					writer.name("values").beginArray();
+					for ( Manifest.ModValueSpec valueSpec : modSpec.valueSpecs )
+						writer.beginObject().name("name").value(valueSpec.name).name("value").value(valueSpec.minVal).endObject();
+					writer.endArray();
+					writer.endObject();
+				}
+			}
+			writer.endArray();
+			writer.endObject();
+			writer.close();
+		} catch ( IOException e ) {} //StringWriter doesn't throw
+		return out.toString();
+	}
+
+	//CPU, GC and heap use of the whole process between construction and stop()
+	private static class Resources {
+		private final long cpuStart = processCpuNanos();
+		private final long gcCountStart;
+		private final long gcMillisStart;
+		private final ScheduledExecutorService sampler;
+		private volatile long heapPeak = 0;
+		long cpuNanos;
+		long gcCount;
+		long gcMillis;
+
+		Resources() {
+			long[] gc = gc();
+			gcCountStart = gc[0];
+			gcMillisStart = gc[1];
+			sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "GCCVerify-heap-sampler");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			sampler.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					heapPeak = Math.max(heapPeak, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+				}
+			}, 0, HEAP_SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+
+		void stop() {
+			sampler.shutdownNow();
+			cpuNanos = processCpuNanos() - cpuStart;
+			long[] gc = gc();
+			gcCount = gc[0] - gcCountStart;
+			gcMillis = gc[1] - gcMillisStart;
+		}
+
+		//-1 if the JVM doesn't report it
+		private static long processCpuNanos() {
+			OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+			if ( os instanceof com.sun.management.OperatingSystemMXBean )
+				return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+			return -1;
+		}
+
+		private static long[] gc() {
+			long count = 0;
+			long millis = 0;
+			for ( GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans() ) {
+				count += Math.max(0, collector.getCollectionCount());
+				millis += Math.max(0, collector.getCollectionTime());
+			}
+			return new long[]{count, millis};
+		}
+	}
+
+	public static class Result {
+		public final int controllers;
+		public final int concurrency;
+		public final Verifier.Platform platform;
+		public final String firmware;
+		public final int imageBytes;
+		public final int passed;
+		public final double wallSeconds;
+		public final double perHour;
+		//Per controller, from the start of its verification to the end, in the same histograms the metrics use
+		public final Histogram latencyMillis = new Histogram();
+		public final Histogram[] phaseMillis = new Histogram[Verifier.Phase.values().length];
+		public final double cpuSeconds;
+		public final long gcCount;
+		public final long gcMillis;
+		public final long heapPeakBytes;
+		public final long heapMaxBytes;
+
+		Result(StationBenchmark benchmark, String firmware, int imageBytes, List<Station.StationResult> results, long wallNanos, Resources resources) {
+			controllers = benchmark.controllers;
+			concurrency = Math.min(benchmark.concurrency, benchmark.controllers);
+			platform = benchmark.platform;
+			this.firmware = firmware;
+			this.imageBytes = imageBytes;
+			int passed = 0;
+			for ( int i = 0; i < phaseMillis.length; i++ )
+				phaseMillis[i] = new Histogram();
+			for ( Station.StationResult result : results ) {
+				if ( result.passed() )
+					passed++;
+				latencyMillis.record(Math.round(result.elapsed * 1000));
+				for ( Verifier.Phase phase : Verifier.Phase.values() )
+					phaseMillis[phase.ordinal()].record(result.phaseMillis(phase));
+			}
+			this.passed = passed;
+			wallSeconds = wallNanos / 1e9;
+			perHour = results.size() / wallSeconds * 3600;
+			cpuSeconds = resources.cpuNanos < 0 ? -1 : resources.cpuNanos / 1e9;
+			gcCount = resources.gcCount;
+			gcMillis = resources.gcMillis;
+			heapPeakBytes = resources.heapPeak;
+			heapMaxBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax();
+		}
+
+		//Share of all processors the station kept busy, or -1 if CPU time isn't available
+		public double cpuUtilization() {
+			return cpuSeconds < 0 ? -1 : cpuSeconds / (wallSeconds * Runtime.getRuntime().availableProcessors());
+		}
+
+		public String toText() {
+			StringBuilder text = new StringBuilder();
+			Formatter formatter = new Formatter(text);
+			formatter.format("%d/%d controller(s) passed in %.1fs (%d at a time)%n", passed, controllers, wallSeconds, concurrency);
+			formatter.format("Throughput: %.0f controllers/hour%n", perHour);
+			formatter.format("Latency (ms): p50 %d, p95 %d, p99 %d, max %d, mean %d%n", latencyMillis.percentile(0.50),
+							 latencyMillis.percentile(0.95), latencyMillis.percentile(0.99), latencyMillis.max(), latencyMillis.mean());
+			for ( Verifier.Phase phase : Verifier.Phase.values() ) {
+				Histogram millis = phaseMillis[phase.ordinal()];
+				formatter.format("  %-9s p50 %6d, p95 %6d, mean %6d%n", phase.name().toLowerCase(), millis.percentile(0.50), millis.percentile(0.95), millis.mean());
+			}
+			if ( cpuSeconds >= 0 )
+				formatter.format("CPU: %.1fs (%.1f%% of %d processors)%n", cpuSeconds, cpuUtilization() * 100, Runtime.getRuntime().availableProcessors());
+			formatter.format("GC: %d collections, %dms%n", gcCount, gcMillis);
+			formatter.format("Heap: %.1fMB peak of %.1fMB max%n", heapPeakBytes / 1048576.0, heapMaxBytes / 1048576.0);
+			return text.toString();
+		}
+
+		//The setup goes in with the numbers so two results files can be checked for comparability
+		public void writeJson(Writer out) throws IOException {
+			JsonWriter writer = new JsonWriter(out);
+			writer.setIndent("  ");
+			writer.beginObject();
+			writer.name("controllers").value(controllers);
+			writer.name("concurrency").value(concurrency);
+			writer.name("platform").value(platform.name());
+			writer.name("firmware").value(firmware);
+			writer.name("image_bytes").value(imageBytes);
+			writer.name("java_version").value(System.getProperty("java.version"));
+			writer.name("processors").value(Runtime.getRuntime().availableProcessors());
+			writer.name("passed").value(passed);
+			writer.name("wall_s").value(wallSeconds);
+			writer.name("controllers_per_hour").value(perHour);
+			writer.name("latency_ms").beginObject();
+			writer.name("p50").value(latencyMillis.percentile(0.50));
+			writer.name("p95").value(latencyMillis.percentile(0.95));
+			writer.name("p99").value(latencyMillis.percentile(0.99));
+			writer.name("max").value(latencyMillis.max());
+			writer.name("mean").value(latencyMillis.mean());
+			writer.endObject();
+			writer.name("phases_ms").beginObject();
+			for ( Verifier.Phase phase : Verifier.Phase.values() ) {
+				Histogram millis = phaseMillis[phase.ordinal()];
+				writer.name(phase.name().toLowerCase()).beginObject();
+				writer.name("p50").value(millis.percentile(0.50));
+				writer.name("p95").value(millis.percentile(0.95));
+				writer.name("mean").value(millis.mean());
+				writer.endObject();
+			}
+			writer.endObject();
+			writer.name("cpu_s").value(cpuSeconds);
+			writer.name("cpu_utilization").value(cpuUtilization());
+			writer.name("gc_count").value(gcCount);
+			writer.name("gc_ms").value(gcMillis);
+			writer.name("heap_peak_bytes").value(heapPeakBytes);
+			writer.name("heap_max_bytes").value(heapMaxBytes);
+			writer.endObject();
+			writer.flush();
+		}
+	}
+
+}
@@ -0,0 +1,32 @@
+/**
+ * StationBenchmarkException.java is the error raised when the station benchmark can't
+ * be set up, e.g. because no library image is ready.
+ *
+ * Contains the StationBenchmarkException class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+@SuppressWarnings("serial")
+class StationBenchmarkException extends Exception {
+	public StationBenchmarkException(String message) {
+		super(message);
+	}
+}
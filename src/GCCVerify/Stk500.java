@@ -0,0 +1,123 @@
+/**
+ * Stk500.java is a minimal STK500v1 client for reading program memory through
+ * the Arduino (Optiboot/ATmegaBOOT) bootloader. It replaces the avrdude
+ * subprocess by talking to the bootloader directly over an open port and
+ * returning flash contents in memory.
+ *
+ * Contains the Stk500 class and its exception
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import jssc.*;
+
+public class Stk500 {
+
+	//STK500v1 protocol bytes (only the subset the Arduino bootloaders implement)
+	private static final byte STK_OK = 0x10;
+	private static final byte STK_INSYNC = 0x14;
+	private static final byte CRC_EOP = 0x20;
+	private static final byte STK_GET_SYNC = 0x30;
+	private static final byte STK_ENTER_PROGMODE = 0x50;
+	private static final byte STK_LEAVE_PROGMODE = 0x51;
+	private static final byte STK_LOAD_ADDRESS = 0x55;
+	private static final byte STK_READ_PAGE = 0x74;
+	private static final byte STK_READ_SIGN = 0x75;
+	private static final byte MEMTYPE_FLASH = 'F';
+
+	private static final int SYNC_ATTEMPTS = 10;
+	//Enough for a bootloader that is there to answer straight after a reset
+	public static final int BOOT_SYNC_ATTEMPTS = 3;
+	private static final int SYNC_TIMEOUT = 200;
+	private static final int READ_TIMEOUT = 1000;
+
+	private final Transport serialPort;
+
+	public Stk500(Transport serialPort) {
+		this.serialPort = serialPort;
+	}
+
+	//Synchronizes with a bootloader the board was just reset into, checks the device signature and enters programming mode
+	public void connect(byte[] signature) throws SerialPortException, Stk500Exception {
+		connect(signature, SYNC_ATTEMPTS);
+	}
+
+	public void connect(byte[] signature, int syncAttempts) throws SerialPortException, Stk500Exception {
+		boolean inSync = false;
+		for ( int i = 0; i < syncAttempts && !inSync; i++ ) {
+			serialPort.purgeInput();
+			serialPort.writeBytes(new byte[]{STK_GET_SYNC, CRC_EOP});
+			try {
+				byte[] response = serialPort.readBytes(2, SYNC_TIMEOUT);
+				inSync = response[0] == STK_INSYNC && response[1] == STK_OK;
+			} catch ( SerialPortTimeoutException e ) {}
+		}
+		if ( !inSync )
+			throw new Stk500Exception("Could not synchronize with bootloader on " + serialPort.getPortName() + ".");
+
+		byte[] deviceSignature = command(new byte[]{STK_READ_SIGN, CRC_EOP}, 3);
+		for ( int i = 0; i < signature.length; i++ ) {
+			if ( deviceSignature[i] != signature[i] )
+				throw new Stk500Exception(String.format("Unexpected device signature %s.", Verifier.bytesToHex(deviceSignature)));
+		}
+
+		command(new byte[]{STK_ENTER_PROGMODE, CRC_EOP}, 0);
+	}
+
+	//Leaves programming mode, which makes the bootloader start the application
+	public void disconnect() throws SerialPortException, Stk500Exception {
+		command(new byte[]{STK_LEAVE_PROGMODE, CRC_EOP}, 0);
+	}
+
+	//Reads length bytes of flash starting at a byte address, handing each page to consumer as it arrives.
+	//Returns false if the consumer stopped the read early.
+	public boolean readFlash(int address, int length, int pageSize, PageConsumer consumer) throws SerialPortException, Stk500Exception {
+		for ( int offset = 0; offset < length; offset += pageSize ) {
+			int count = Math.min(pageSize, length - offset);
+			int wordAddress = (address + offset) >> 1;
+			command(new byte[]{STK_LOAD_ADDRESS, (byte) (wordAddress & 0xFF), (byte) ((wordAddress >> 8) & 0xFF), CRC_EOP}, 0);
+			byte[] page = command(new byte[]{STK_READ_PAGE, (byte) ((count >> 8) & 0xFF), (byte) (count & 0xFF), MEMTYPE_FLASH, CRC_EOP}, count);
+			if ( !consumer.accept(address + offset, page, 0, count) )
+				return false;
+		}
+		return true;
+	}
+
+	//Sends a command and returns the responseLength bytes framed by STK_INSYNC ... STK_OK
+	private byte[] command(byte[] request, int responseLength) throws SerialPortException, Stk500Exception {
+		serialPort.writeBytes(request);
+		try {
+			byte[] response = serialPort.readBytes(responseLength + 2, READ_TIMEOUT);
+			if ( response[0] != STK_INSYNC || response[responseLength + 1] != STK_OK )
+				throw new Stk500Exception(String.format("Bootloader lost sync after command 0x%02X.", request[0]));
+			byte[] data = new byte[responseLength];
+			System.arraycopy(response, 1, data, 0, responseLength);
+			return data;
+		} catch ( SerialPortTimeoutException e ) {
+			throw new Stk500Exception(String.format("Bootloader did not respond to command 0x%02X.", request[0]));
+		}
+	}
+
+	public interface PageConsumer {
+		//Returns false to stop reading
+		boolean accept(int address, byte[] data, int offset, int length);
+	}
+
+}
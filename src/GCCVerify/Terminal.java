@@ -23,19 +23,47 @@
  */
 package GCCVerify;
 import GCCVerify.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.regex.Pattern;
 import jssc.*;
 
 public class Terminal {
 
+	//Batch mode exit statuses
+	public static final int EXIT_PASSED = 0;
+	public static final int EXIT_FAILED = 1;
+	public static final int EXIT_ERROR = 2;
+
+	private static final int DEFAULT_METRICS_INTERVAL = 60;
+	private static final String DEFAULT_BENCHMARK_OUTPUT = "station-benchmark.json";
+
 	public static void main(String[] args) {
 
+		//Batch mode keeps stdout for result records; everything else goes to stderr
+		boolean batch = Arrays.asList(args).contains("-b");
+		PrintStream resultStream = System.out;
+		if ( batch )
+			System.setOut(System.err);
+
 		System.out.printf("%n-------------------%n");
 		System.out.println("GCCVerify by Kayson");
 		System.out.printf("-------------------%n%n");
 
 		boolean offline = false;
-		for (String arg : args) {
+		boolean station = false;
+		boolean watch = false;
+		Properties options = new Properties();
+		for ( int a = 0; a < args.length; a++ ) {
+			String arg = args[a];
 			if ( arg.equals("-d") ) {
 				System.out.printf("Debug mode enabled.%n%n");
 				Verifier.debug = true;
@@ -45,20 +73,86 @@ public class Terminal {
 				offline = true;
 				System.out.printf("Offline mode enabled.%n%n");
 			}
+			if ( arg.equals("-s") ) {
+				station = true;
+				System.out.printf("Station mode enabled.%n%n");
+			}
+			if ( arg.equals("-w") ) {
+				watch = true;
+				System.out.printf("Watch mode enabled.%n%n");
+			}
+			if ( arg.equals("-b") ) {
+				System.out.printf("Batch mode enabled.%n%n");
+			}
+			//Options that take a value: -c <config file>, -p <ports>, -f <json|csv>, -t <platform>, -r <results file>, -l <api port>,
+			//-a <readback audit rate>, -D <dump baud rate>, -m <metrics interval>, -M <metrics file>, -n <emulated controllers>, -j <concurrency>
+			if ( arg.equals("-c") || arg.equals("-p") || arg.equals("-f") || arg.equals("-t") || arg.equals("-r") || arg.equals("-l") ||
+				 arg.equals("-a") || arg.equals("-D") || arg.equals("-m") || arg.equals("-M") || arg.equals("-n") || arg.equals("-j") ) {
+				if ( a + 1 >= args.length ) {
+					System.out.printf("ERROR: %s requires a value.%n", arg);
+					System.exit(EXIT_ERROR);
+				}
+				String value = args[++a];
+				if ( arg.equals("-c") ) {
+					//Flags override the config file regardless of order
+					try ( Reader reader = Files.newBufferedReader(Paths.get(value), StandardCharsets.UTF_8) ) {
+						Properties fileConfig = new Properties();
+						fileConfig.load(reader);
+						for ( String key : fileConfig.stringPropertyNames() ) {
+							if ( !options.containsKey(key) )
+								options.setProperty(key, fileConfig.getProperty(key));
+						}
+					} catch ( IOException e ) {
+						System.out.printf("ERROR: Could not read config file %s.%n", value);
+						System.exit(EXIT_ERROR);
+					}
+				}
+				else {
+					String key = arg.equals("-p") ? "ports" : arg.equals("-f") ? "format" : arg.equals("-t") ? "platform" :
+								 arg.equals("-l") ? "listen" : arg.equals("-a") ? "audit" : arg.equals("-D") ? "dumpBaud" : arg.equals("-m") ? "metrics" :
+								 arg.equals("-M") ? "metricsFile" : arg.equals("-n") ? "benchmark" : arg.equals("-j") ? "concurrency" : "output";
+					options.setProperty(key, value);
+				}
+			}
 		}
 			
+		if ( options.containsKey("audit") ) {
+			double auditRate = Double.NaN;
+			try {
+				auditRate = Double.parseDouble(options.getProperty("audit"));
+			} catch ( NumberFormatException e ) {}
+			//Written so NaN fails it too
+			if ( !(auditRate >= 0 && auditRate <= 1) ) {
+				System.out.printf("ERROR: Invalid readback audit rate %s.%n", options.getProperty("audit"));
+				System.exit(batch ? EXIT_ERROR : 1);
+			}
+			Verifier.readbackAuditRate = auditRate;
+		}
+
+		if ( options.containsKey("dumpBaud") ) {
+			int dumpBaudRate = 0;
+			try {
+				dumpBaudRate = Integer.parseInt(options.getProperty("dumpBaud"));
+			} catch ( NumberFormatException e ) {}
+			if ( !FlashDump.isSupportedBaudRate(dumpBaudRate) ) {
+				System.out.printf("ERROR: Invalid dump baud rate %s. Supported rates: %s.%n", options.getProperty("dumpBaud"), Arrays.toString(FlashDump.BAUD_RATES));
+				System.exit(batch ? EXIT_ERROR : 1);
+			}
+			Verifier.dumpBaudRate = dumpBaudRate;
+		}
+
 		//Startup: Load manifests, check for updates
 		boolean loadedRemote = false;
 		if ( !Verifier.loadLocalManifest() ) {
 			if ( offline ) {
 				System.out.println("ERROR: Could not load any manifest.");
-				System.exit(1);
+				System.exit(batch ? EXIT_ERROR : 1);
 				
 			}
 			else {
 				if ( !Verifier.loadRemoteManifest() ) {
 					System.out.println("ERROR: Could not load any manifest.");
-					System.exit(1);
+					System.exit(batch ? EXIT_ERROR : 1);
 				}
 				else {
 					Verifier.saveRemoteManifestToLocal();
@@ -71,7 +165,8 @@ public class Terminal {
 			Verifier.useLocalManifest();
 		}
 
-		if ( !offline && !loadedRemote && Verifier.loadRemoteManifest() && Verifier.isRemoteManifestNewer() ){
+		//Nobody is there to answer the update prompt in batch or benchmark mode, so they run against the local manifest as is
+		if ( !batch && !options.containsKey("benchmark") && !offline && !loadedRemote && Verifier.loadRemoteManifest() && Verifier.isRemoteManifestNewer() ){
 			while (true) {
 				System.out.println("A manifest update is available! Download update?");
 				System.out.println("0: No");
@@ -99,8 +194,105 @@ public class Terminal {
 			}
 		}
 
+		//Sync the library in the background; a verification that needs an image first fetches it on demand
 		if ( !offline )
-			Verifier.updateLibFromManifest();
+			Verifier.prefetchLib();
+
+		//Periodic timing statistics: to a JSON file if one is given, otherwise printed
+		if ( options.containsKey("metrics") || options.containsKey("metricsFile") ) {
+			try {
+				int interval = Integer.parseInt(options.getProperty("metrics", Integer.toString(DEFAULT_METRICS_INTERVAL)));
+				if ( interval <= 0 )
+					throw new NumberFormatException();
+				Metrics.shared().startDump(interval, options.containsKey("metricsFile") ? Paths.get(options.getProperty("metricsFile")) : null);
+			} catch ( NumberFormatException e ) {
+				System.out.printf("ERROR: Invalid metrics interval %s.%n", options.getProperty("metrics"));
+				System.exit(batch ? EXIT_ERROR : 1);
+			}
+		}
+
+		//Benchmark mode: time a run against emulated controllers instead of verifying real ones
+		if ( options.containsKey("benchmark") )
+			System.exit(runBenchmark(options));
+
+		if ( batch ) {
+			int status = runBatch(options, resultStream);
+			//A batch usually finishes between dumps, so it always leaves its final statistics
+			Metrics.shared().stopDump();
+			System.exit(status);
+		}
+
+		//Pick up edits to the local manifest without a restart
+		try {
+			new ManifestWatcher(Paths.get("lib", "manifest.json"), !offline).start();
+		} catch ( IOException e ) {
+			if ( Verifier.debug )
+				System.out.println(e.toString());
+			System.out.printf("WARNING: Could not watch local manifest for changes.%n%n");
+		}
+
+		//Daemon mode: serve verification jobs until killed
+		if ( options.containsKey("listen") ) {
+			try {
+				final Daemon daemon = new Daemon(Integer.parseInt(options.getProperty("listen")), Station.DEFAULT_MAX_PORTS);
+				daemon.start();
+				//Controllers that get plugged in become jobs like any other, so API clients can follow them
+				if ( watch ) {
+					final Verifier.Platform platform = watchPlatform(options);
+					startPortWatcher(options, new PortWatcher.Listener() {
+						public void portAttached(String portName) {
+							Daemon.Job job = daemon.submit(portName, platform);
+							if ( job != null )
+								System.out.printf("%s attached. Queued job %s.%n", portName, job.id);
+						}
+						public void portRemoved(String portName) {
+							System.out.printf("%s removed.%n", portName);
+						}
+					});
+				}
+				Thread.currentThread().join();
+			} catch ( NumberFormatException e ) {
+				System.out.printf("ERROR: Invalid API port %s.%n", options.getProperty("listen"));
+				System.exit(1);
+			} catch ( IOException e ) {
+				System.out.printf("ERROR: Could not start API server. %s%n", e.getMessage());
+				System.exit(1);
+			} catch ( InterruptedException e ) {}
+			System.exit(0);
+		}
+
+		//Watch mode: verify every controller as it is plugged in, until killed
+		if ( watch ) {
+			final Verifier.Platform platform = watchPlatform(options);
+			final Station verifyStation = new Station(Station.DEFAULT_MAX_PORTS);
+			final Station.ResultListener printer = new Station.ResultListener() {
+				public void resultReady(Station.StationResult result) {
+					//Results finish on different threads; print each one whole
+					synchronized ( Terminal.class ) {
+						System.out.printf("================ %s ================%n", result.portName);
+						System.out.print(result.log);
+						System.out.print(ResultRenderer.text(result));
+					}
+				}
+			};
+			startPortWatcher(options, new PortWatcher.Listener() {
+				public void portAttached(String portName) {
+					synchronized ( Terminal.class ) {
+						System.out.printf("%s attached. Verifying...%n%n", portName);
+					}
+					verifyStation.submit(portName, platform, printer);
+				}
+				public void portRemoved(String portName) {
+					synchronized ( Terminal.class ) {
+						System.out.printf("%s removed.%n%n", portName);
+					}
+				}
+			});
+			try {
+				Thread.currentThread().join();
+			} catch ( InterruptedException e ) {}
+			System.exit(0);
+		}
 
 		//Main console loop
 		while ( true ) {
@@ -111,6 +303,26 @@ public class Terminal {
 			if ( portNames.length == 0 ) {
 				System.out.printf("No serial ports found. Check USB Connection...%n%n");
 			}
+			else if ( station ) {
+				Verifier.Platform platform = choosePlatform();
+				long start = System.currentTimeMillis();
+				System.out.printf("Verifying %d controller(s)...%n%n", portNames.length);
+				Station verifyStation = new Station(Math.min(portNames.length, Station.DEFAULT_MAX_PORTS));
+				try {
+					List<Station.StationResult> results = verifyStation.verifyAll(portNames, platform);
+					for ( Station.StationResult result : results ) {
+						System.out.printf("================ %s ================%n", result.portName);
+						System.out.print(result.log);
+						System.out.print(ResultRenderer.text(result));
+					}
+				} catch ( InterruptedException e ) {
+					System.out.printf("Verification was interrupted.%n%n");
+				} finally {
+					verifyStation.shutdown();
+				}
+				float elapsed = ((float) (System.currentTimeMillis() - start))/1000;
+				System.out.printf("Station verification took %.2fs.%n%n", elapsed);
+			}
 			else {
 				if ( portNames.length > 1 ) {
 					while (true) {
@@ -141,80 +353,20 @@ public class Terminal {
 				}
 
 				//Choose the platform
-				Verifier.Platform platform;
-				while (true) {
-					Verifier.Platform[] platformVals = Verifier.Platform.values();
-					if ( platformVals.length == 1 ) {
-						platform = platformVals[0];
-						System.out.printf("Platform auto-selected.%n%n");
-						break;
-					}
-					System.out.println("Please select a platform: ");
-					for ( int i = 0; i < platformVals.length; i++ ) {
-						System.out.printf("%d: %s%n", i, platformVals[i].name());
-					}
-					System.out.printf("%nPlatform>");
-					Scanner s = new Scanner(System.in);
-					int i = -1;
-					try {
-						i = s.nextInt();
-					}
-					catch ( java.util.InputMismatchException e ) {}
-					if ( i < 0 || i > platformVals.length - 1 ) {
-						System.out.printf("%nInvalid selection. ");
-					}
-					else {
-						platform = platformVals[i];
-						System.out.println("");
-						break;
-					}
-				}
+				Verifier.Platform platform = choosePlatform();
 
 				long start = System.currentTimeMillis();
 
-				Verifier verifier = new Verifier(portName);
-				verifier.selectPlatform(platform);
-
-				Verifier.VerifyParamsResult paramResult = verifier.verifyParams();
-				boolean firmwareSuccess = verifier.verifyFirmwareImage();
-
-				System.out.print(paramResult.output);
-				System.out.println("--------------------------------");
-				System.out.println("|  Firmware Mod Verification   |");
-				System.out.println("--------------------------------");
-				System.out.println("|                              |");
-				if ( paramResult.succeeded ) {
-					System.out.println("|                              |");
-					System.out.println("|           SUCCESS!           |");
-					System.out.println("|                              |");
-				}
-				else {
-					System.out.println("|         ************         |");
-					System.out.println("|         * FAILURE! *         |");
-					System.out.println("|         ************         |");
-				}
-				System.out.println("|                              |");
-				System.out.printf("--------------------------------%n%n");
-
-				System.out.println("--------------------------------");
-				System.out.println("|  Firmware Image Verification |");
-				System.out.println("--------------------------------");
-				System.out.println("|                              |");
-				if ( firmwareSuccess ) {
-					System.out.println("|                              |");
-					System.out.println("|           SUCCESS!           |");
-					System.out.println("|                              |");
+				Station.StationResult result;
+				try ( Verifier verifier = new Verifier(portName) ) {
+					verifier.selectPlatform(platform);
+					Verifier.VerifyParamsResult paramResult = verifier.verifyParams();
+					ImageResult imageResult = verifier.verifyFirmwareImage();
+					float elapsed = ((float) (System.currentTimeMillis() - start))/1000;
+					result = Station.StationResult.of(portName, platform, verifier, paramResult, imageResult, elapsed, "");
 				}
-				else {
-					System.out.println("|         ************         |");
-					System.out.println("|         * FAILURE! *         |");
-					System.out.println("|         ************         |");
-				}
-				System.out.println("|                              |");
-				System.out.printf("--------------------------------%n%n");
 
-				float elapsed = ((float) (System.currentTimeMillis() - start))/1000;
-				System.out.printf("Verification took %.2fs.%n%n", elapsed);
+				System.out.print(ResultRenderer.text(result));
 
 			}
 
@@ -245,4 +397,188 @@ public class Terminal {
 
 	} //main()
 
+	//Verifies the configured ports once without any prompts and returns the exit status
+	private static int runBatch(Properties config, PrintStream resultStream) {
+		BatchReport.Format format;
+		Verifier.Platform platform;
+		try {
+			format = BatchReport.Format.valueOf(config.getProperty("format", "json").toUpperCase());
+		} catch ( IllegalArgumentException e ) {
+			System.out.printf("ERROR: Unknown result format %s.%n", config.getProperty("format"));
+			return EXIT_ERROR;
+		}
+		try {
+			platform = config.containsKey("platform") ? Verifier.Platform.valueOf(config.getProperty("platform").toUpperCase()) :
+														Verifier.Platform.values()[0];
+		} catch ( IllegalArgumentException e ) {
+			System.out.printf("ERROR: Unknown platform %s.%n", config.getProperty("platform"));
+			return EXIT_ERROR;
+		}
+
+		String[] portNames = matchPorts(config.getProperty("ports", "*"), SerialPortList.getPortNames());
+		if ( portNames.length == 0 ) {
+			System.out.printf("ERROR: No serial ports matched.%n");
+			return EXIT_ERROR;
+		}
+
+		PrintStream results = resultStream;
+		if ( config.containsKey("output") ) {
+			try {
+				results = new PrintStream(Files.newOutputStream(Paths.get(config.getProperty("output"))), false, "UTF-8");
+			} catch ( IOException e ) {
+				System.out.printf("ERROR: Could not open results file %s.%n", config.getProperty("output"));
+				return EXIT_ERROR;
+			}
+		}
+
+		System.out.printf("Verifying %d controller(s)...%n%n", portNames.length);
+		BatchReport report = new BatchReport(results, format);
+		Station verifyStation = new Station(Math.min(portNames.length, Station.DEFAULT_MAX_PORTS));
+		int status = EXIT_PASSED;
+		try {
+			List<Station.StationResult> stationResults = verifyStation.verifyAll(portNames, platform);
+			for ( Station.StationResult result : stationResults ) {
+				System.out.printf("================ %s ================%n", result.portName);
+				System.out.print(result.log);
+				report.write(result);
+				if ( !result.passed() )
+					status = EXIT_FAILED;
+			}
+		} catch ( InterruptedException e ) {
+			System.out.printf("Verification was interrupted.%n");
+			status = EXIT_ERROR;
+		} catch ( IOException e ) {
+			System.out.printf("ERROR: Could not write results.%n");
+			status = EXIT_ERROR;
+		} finally {
+			verifyStation.shutdown();
+			if ( results != resultStream )
+				results.close();
+		}
+		return status;
+	}
+
+	private static int runBenchmark(Properties config) {
+		int controllers;
+		int concurrency;
+		try {
+			controllers = Integer.parseInt(config.getProperty("benchmark"));
+			concurrency = Integer.parseInt(config.getProperty("concurrency", Integer.toString(Station.DEFAULT_MAX_PORTS)));
+			if ( controllers <= 0 || concurrency <= 0 )
+				throw new NumberFormatException();
+		} catch ( NumberFormatException e ) {
+			System.out.printf("ERROR: Invalid controller count or concurrency.%n");
+			return EXIT_ERROR;
+		}
+		Verifier.Platform platform;
+		try {
+			platform = config.containsKey("platform") ? Verifier.Platform.valueOf(config.getProperty("platform").toUpperCase()) :
+														Verifier.Platform.values()[0];
+		} catch ( IllegalArgumentException e ) {
+			System.out.printf("ERROR: Unknown platform %s.%n", config.getProperty("platform"));
+			return EXIT_ERROR;
+		}
+
+		StationBenchmark.Result result;
+		try {
+			result = new StationBenchmark(controllers, concurrency, platform).run();
+		} catch ( StationBenchmarkException e ) {
+			System.out.printf("ERROR: %s%n", e.getMessage());
+			return EXIT_ERROR;
+		} catch ( InterruptedException e ) {
+			return EXIT_ERROR;
+		}
+		System.out.printf("%n%s%n", result.toText());
+
+		String output = config.getProperty("output", DEFAULT_BENCHMARK_OUTPUT);
+		try ( Writer writer = Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8) ) {
+			result.writeJson(writer);
+			System.out.printf("Results written to %s.%n", output);
+		} catch ( IOException e ) {
+			System.out.printf("ERROR: Could not write results file %s.%n", output);
+			return EXIT_ERROR;
+		}
+		return result.passed == result.controllers ? EXIT_PASSED : EXIT_FAILED;
+	}
+
+	private static Verifier.Platform watchPlatform(Properties options) {
+		if ( options.containsKey("platform") ) {
+			try {
+				return Verifier.Platform.valueOf(options.getProperty("platform").toUpperCase());
+			} catch ( IllegalArgumentException e ) {
+				System.out.printf("ERROR: Unknown platform %s.%n", options.getProperty("platform"));
+				System.exit(1);
+			}
+		}
+		return choosePlatform();
+	}
+
+	//Watches the ports selected with -p (every port by default). Ports attached before startup are left alone.
+	private static void startPortWatcher(Properties options, PortWatcher.Listener listener) {
+		new PortWatcher(options.getProperty("ports"), listener).start(false);
+		System.out.printf("Waiting for controllers to be plugged in...%n%n");
+	}
+
+	//Resolves a comma-separated list of port names and patterns (* and ? wildcards) against the attached ports.
+	//Names without wildcards are used as given, since not every port shows up in the list.
+	static String[] matchPorts(String spec, String[] available) {
+		Set<String> matched = new LinkedHashSet<String>();
+		for ( String entry : spec.split(",") ) {
+			entry = entry.trim();
+			if ( entry.isEmpty() )
+				continue;
+			if ( entry.indexOf('*') < 0 && entry.indexOf('?') < 0 ) {
+				matched.add(entry);
+				continue;
+			}
+			StringBuilder regex = new StringBuilder();
+			for ( String literal : entry.split("((?<=[*?])|(?=[*?]))") ) {
+				if ( literal.equals("*") )
+					regex.append(".*");
+				else if ( literal.equals("?") )
+					regex.append('.');
+				else
+					regex.append(Pattern.quote(literal));
+			}
+			Pattern pattern = Pattern.compile(regex.toString());
+			for ( String portName : available ) {
+				if ( pattern.matcher(portName).matches() )
+					matched.add(portName);
+			}
+		}
+		return matched.toArray(new String[matched.size()]);
+	}
+
+	private static Verifier.Platform choosePlatform() {
+		Verifier.Platform platform;
+		while (true) {
+			Verifier.Platform[] platformVals = Verifier.Platform.values();
+			if ( platformVals.length == 1 ) {
+				platform = platformVals[0];
+				System.out.printf("Platform auto-selected.%n%n");
+				break;
+			}
+			System.out.println("Please select a platform: ");
+			for ( int i = 0; i < platformVals.length; i++ ) {
+				System.out.printf("%d: %s%n", i, platformVals[i].name());
+			}
+			System.out.printf("%nPlatform>");
+			Scanner s = new Scanner(System.in);
+			int i = -1;
+			try {
+				i = s.nextInt();
+			}
+			catch ( java.util.InputMismatchException e ) {}
+			if ( i < 0 || i > platformVals.length - 1 ) {
+				System.out.printf("%nInvalid selection. ");
+			}
+			else {
+				platform = platformVals[i];
+				System.out.println("");
+				break;
+			}
+		}
+		return platform;
+	}
+
 } //class
\ No newline at end of file
@@ -0,0 +1,77 @@
+/**
+ * Transport.java is the serial link the verifier talks to a controller over.
+ * SerialTransport implements it on a jssc port for real hardware and
+ * EmulatedController implements it in-process, so everything above it runs
+ * the same either way. Failures are reported with jssc's exceptions so callers
+ * handle both alike.
+ *
+ * Contains the Transport interface
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.nio.charset.StandardCharsets;
+import jssc.*;
+
+public interface Transport {
+
+	String getPortName();
+
+	boolean isOpened();
+
+	void openPort() throws SerialPortException;
+
+	//Returns false if the port could not be closed cleanly
+	boolean closePort() throws SerialPortException;
+
+	//Takes jssc's SerialPort constants
+	boolean setParams(int baudRate, int dataBits, int stopBits, int parity) throws SerialPortException;
+
+	boolean setDTR(boolean enabled) throws SerialPortException;
+
+	boolean setRTS(boolean enabled) throws SerialPortException;
+
+	//Discards anything received but not read yet
+	void purgeInput() throws SerialPortException;
+
+	void writeBytes(byte[] bytes) throws SerialPortException;
+
+	default void writeString(String string) throws SerialPortException {
+		writeBytes(string.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	//Blocks until count bytes have been received, throwing SerialPortTimeoutException after timeout ms
+	byte[] readBytes(int count, int timeout) throws SerialPortException, SerialPortTimeoutException;
+
+	//Hands received data to listener as it arrives instead of leaving it for readBytes, until removeListener() is called
+	void addListener(Listener listener) throws SerialPortException;
+
+	void removeListener() throws SerialPortException;
+
+	public static interface Listener {
+		void dataReceived(byte[] bytes);
+	}
+
+	//Opens transports by port name, so stations can run on real or emulated ports alike
+	public static interface Factory {
+		Transport create(String portName);
+	}
+
+}
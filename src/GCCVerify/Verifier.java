@@ -33,37 +33,84 @@ import java.nio.file.*;
 import static java.nio.file.StandardCopyOption.*;
 import java.io.*;
 import java.net.URL;
-import java.util.Scanner;
-import java.util.Formatter;
 import java.util.stream.Stream;
 import static java.util.InputMismatchException.*;
-import java.nio.channels.*;
-import com.google.gson.*;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import com.google.gson.JsonSyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import GCCVerify.Manifest;
 import GCCVerify.Manifest.FirmwareImage;
 
-public class Verifier {
+public class Verifier implements AutoCloseable {
 
 	public static enum Platform {ARDUINO};
+	//Timed steps of a verification: resetting and waiting for boot, reading flash during boot, receiving the parameters,
+	//parsing and checking them, getting the library image, the digest challenge, and reading back and comparing flash
+	public static enum Phase {BOOT, CAPTURE, PARAMS, PARSE, LIBRARY, DIGEST, READBACK};
 	public static final String manifestURL = "https://raw.githubusercontent.com/kaysond/GCCVerify/master/build/lib/manifest.json";
-	private static Manifest localManifest = new Manifest();
-	private static Manifest remoteManifest = new Manifest();
-	private static Manifest activeManifest = new Manifest();
+	//Manifests are immutable snapshots; these only ever swap which snapshot is current
+	private static final AtomicReference<Manifest> localManifest = new AtomicReference<Manifest>(Manifest.EMPTY);
+	private static final AtomicReference<Manifest> remoteManifest = new AtomicReference<Manifest>(Manifest.EMPTY);
+	private static final AtomicReference<Manifest> activeManifest = new AtomicReference<Manifest>(Manifest.EMPTY);
 	public static boolean debug = false;
-
-	private SerialPort serialPort;
+	//Fraction of controllers whose matching digest or dump is still followed by a readback through the bootloader as a spot check
+	public static double readbackAuditRate = 0.1;
+	//Highest baud rate offered to firmware that can stream its own flash
+	public static int dumpBaudRate = FlashDump.DEFAULT_BAUD_RATE;
+	private static final Random auditRandom = new Random();
+	//Read flash through the bootloader right after the reset, before the application starts, so one reset covers everything
+	public static boolean captureDuringBoot = true;
+	//Ports whose last firmware could check its own flash, where reading it during boot would be wasted time
+	private static final Set<String> extensionPorts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	//Firmware last detected on each port, so reading flash during boot can be limited to that image
+	private static final Map<String, String> portFirmware = new ConcurrentHashMap<String, String>();
+
+	private Transport serialPort;
+	//Owns the open port from the reset until the image check is done
+	private SerialSession session;
+	private PrintStream out = System.out;
+	//The manifest this verification started with, so a reload mid-verification can't change the rules under it
+	private Manifest manifest;
+	private final long[] phaseMillis = new long[Phase.values().length];
+	private final boolean[] phaseRan = new boolean[Phase.values().length];
+	private long verifyStart;
+	//Set once a verification has been started and not yet recorded in the metrics
+	private boolean unrecorded = false;
+	private Phase currentPhase;
+	private long phaseStart;
+	//Set when the firmware is still running and listening after the parameters and supports a protocol extension
+	private boolean appDigest;
+	private boolean appDump;
+	//Flash read during boot, if any
+	private FlashCapture capture;
 	private Platform platform;
 	private String firmwareName;
 	private int baudRate;
 	private int dataBits;
 	private int stopBits;
 	private int parity;
+	private int bootloaderBaudRate;
+	private byte[] signature;
+	private int flashSize;
+	private int flashPageSize;
 
 	public Verifier(String portName) {
-		serialPort = new SerialPort(portName);
+		this(new SerialTransport(portName));
+	}
+
+	//Verifies whatever is on the other end of transport, e.g. an EmulatedController
+	public Verifier(Transport transport) {
+		serialPort = transport;
+		session = new SerialSession(serialPort);
 		if ( !isManifestLoaded() ) {
 			loadLocalManifest();
 			useLocalManifest();
@@ -78,77 +125,132 @@ public class Verifier {
 				dataBits = SerialPort.DATABITS_8;
 				stopBits = SerialPort.STOPBITS_1;
 				parity = SerialPort.PARITY_NONE;
+				//atmega328p behind the Nano's bootloader
+				bootloaderBaudRate = SerialPort.BAUDRATE_57600;
+				signature = new byte[]{0x1E, (byte) 0x95, 0x0F};
+				flashSize = 32768;
+				flashPageSize = 128;
 				break;
 		}
 	}
 
+	//Progress messages go here; the station redirects them so parallel runs don't interleave
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
+	public String firmwareName() {
+		return firmwareName;
+	}
+
+	//Milliseconds the last verification spent in phase, or 0 if it didn't get that far
+	public long phaseMillis(Phase phase) {
+		return phaseMillis[phase.ordinal()];
+	}
+
+	//Ends the current phase, if any, and starts timing the next one
+	private void startPhase(Phase phase) {
+		endPhase();
+		currentPhase = phase;
+		phaseStart = System.nanoTime();
+	}
+
+	//A phase that is entered more than once (e.g. boot around the flash capture) accumulates
+	private void endPhase() {
+		if ( currentPhase != null ) {
+			phaseMillis[currentPhase.ordinal()] += (System.nanoTime() - phaseStart) / 1000000;
+			phaseRan[currentPhase.ordinal()] = true;
+		}
+		currentPhase = null;
+	}
+
+	//Adds the finished verification to the shared metrics
+	private void recordMetrics() {
+		if ( !unrecorded )
+			return;
+		unrecorded = false;
+		long[] ran = new long[phaseMillis.length];
+		for ( int i = 0; i < ran.length; i++ )
+			ran[i] = phaseRan[i] ? phaseMillis[i] : -1;
+		Metrics.shared().record(serialPort.getPortName(), firmwareName, ran, (System.nanoTime() - verifyStart) / 1000000);
+	}
+
 	public VerifyParamsResult verifyParams() {
-		System.out.println("Verifying parameters of " + platform.name() + " on " + serialPort.getPortName());
-		if ( !isManifestLoaded() ) {
-			System.out.println("ERROR: Manifest is not loaded.");
-			return new VerifyParamsResult(false, "");
+		out.println("Verifying parameters of " + platform.name() + " on " + serialPort.getPortName());
+		manifest = activeManifest.get();
+		if ( manifest.timestamp == 0 ) {
+			out.println("ERROR: Manifest is not loaded.");
+			return VerifyParamsResult.NOT_VERIFIED;
 		}
 		firmwareName = "";
+		Arrays.fill(phaseMillis, 0);
+		Arrays.fill(phaseRan, false);
+		verifyStart = System.nanoTime();
+		unrecorded = true;
+		appDigest = false;
+		appDump = false;
+		capture = null;
+		session.close();
 		try {
-			serialPort.openPort();
-			serialPort.setParams(baudRate, dataBits, stopBits, parity);
+			startPhase(Phase.BOOT);
+			List<int[]> captureRanges = platform == Platform.ARDUINO && captureDuringBoot && !extensionPorts.contains(serialPort.getPortName()) ?
+										captureRanges() : Collections.<int[]>emptyList();
+			session.open(captureRanges.isEmpty() ? baudRate : bootloaderBaudRate, dataBits, stopBits, parity);
+			long resetTime = System.currentTimeMillis();
+			BootTimer bootTimer = BootTimer.forPlatform(platform);
 			if ( platform == Platform.ARDUINO ) {
-				System.out.printf("Waiting for boot...%n");
-				//Reset the system a few times (mainly for Arduino)
-				for ( int i = 0; i < 2; i++ ) {
-					serialPort.setDTR(false);
-					serialPort.setDTR(true);
-					serialPort.setRTS(false);
-					serialPort.setRTS(true);
-					Thread.sleep(250);
+				out.printf("Waiting for boot...%n");
+				//This is the only reset unless the image check has to fall back to the bootloader
+				resetTime = session.reset();
+			}
+			if ( !captureRanges.isEmpty() ) {
+				//Leaving the bootloader starts the application right away, which boots on a different clock
+				startPhase(Phase.CAPTURE);
+				if ( captureFlash(captureRanges) ) {
+					resetTime = System.currentTimeMillis();
+					bootTimer = BootTimer.afterBootloader(platform);
 				}
-				//Wait for bootloader (Nano takes ~920ms after the for loop finishes to boot, immediately do a Serial.begin() and Serial.println())
-				Thread.sleep(1000);
+				session.setBaudRate(baudRate);
+				startPhase(Phase.BOOT);
 			}
-
-			//Send the string once every 0.25s for 1s until something shows up on the serial port
-			System.out.printf("Requesting firmware parameters...%n");
-			for ( int i = 0; i < 4; i++ ) {
+			SerialReceiver receiver = session.receiver();
+
+			//Stay quiet for as long as this platform has needed to boot recently, then probe at a short interval
+			//until something shows up on the serial port. The overall window matches the old fixed sleeps.
+			Thread.sleep(Math.max(0, bootTimer.quietPeriod() - (System.currentTimeMillis() - resetTime)));
+			out.printf("Requesting firmware parameters...%n");
+			receiver.clear();
+			long deadline = resetTime + BootTimer.MAX_WAIT;
+			long probeTime;
+			while ( (probeTime = System.currentTimeMillis()) < deadline ) {
 				serialPort.writeString("GCCVerify");
-				Thread.sleep(250);
-				if ( serialPort.getInputBufferBytesCount() > 0 ) 
+				if ( receiver.awaitData(Math.min(BootTimer.PROBE_INTERVAL, deadline - probeTime)) ) {
+					bootTimer.record(probeTime - resetTime);
+					if ( debug )
+						out.printf("Booted within %dms of reset (fastest recent boot: %dms).%n", probeTime - resetTime, bootTimer.min());
 					break;
+				}
 			}
 
+			startPhase(Phase.PARAMS);
 			//Receive serial data until terminating "\r\n" or for up to 2s (2400 bytes at 9600baud)
-			String firmwareJSON = "";
-			long endTime = System.currentTimeMillis() + 2000;
-			while ( System.currentTimeMillis() < endTime ) {
-				if ( serialPort.getInputBufferBytesCount() > 0 ) {
-					firmwareJSON += serialPort.readString();
-					if ( firmwareJSON.indexOf("\r\n") > 0 )
-						break;
-				}
-			}
-			serialPort.closePort();
-			System.out.printf("Received %d bytes. Parsing...%n", firmwareJSON.length());
+			receiver.awaitTerminator(2000);
+			out.printf("Received %d bytes. Parsing...%n", receiver.received());
 
 			//Skip serial data up to the first "{" and drop anything after the "\r\n" if it exists
-			int bracketIdx = firmwareJSON.indexOf("{");
-			if ( bracketIdx > - 1)
-				firmwareJSON = firmwareJSON.substring(bracketIdx);
-			int termIdx = firmwareJSON.indexOf("\r\n");
-			if ( termIdx > -1 )
-				firmwareJSON = firmwareJSON.substring(0, termIdx);
-
-			Gson gson = new GsonBuilder().setPrettyPrinting().create();
-			FirmwareParams firmwareParams = new FirmwareParams();
+			String firmwareJSON = receiver.json();
+
+			startPhase(Phase.PARSE);
+			FirmwareParams firmwareParams;
 			try {
-				if ( firmwareJSON.length() == 0 )
-					throw new JsonSyntaxException("JSON string was empty");
-				firmwareParams = gson.fromJson(firmwareJSON, FirmwareParams.class);
+				firmwareParams = JsonBinder.readFirmwareParams(firmwareJSON);
 				if ( debug )
-					System.out.println(gson.toJson(firmwareParams));
+					out.println(JsonBinder.toJson(firmwareParams));
 			} catch ( JsonSyntaxException e ) {
-				System.out.println("Response is invalid JSON.");
+				out.println("Response is invalid JSON.");
 				if ( debug )
-					System.out.println(e.getMessage());
-				return new VerifyParamsResult(false, "");
+					out.println(e.getMessage());
+				return VerifyParamsResult.NOT_VERIFIED;
 			}
 
 			//Validate received JSON
@@ -165,238 +267,347 @@ public class Verifier {
 			//vals: int[] - values associated with the mod
 
 			if ( firmwareParams.name == "" ) {
-				System.out.println("Response did not contain firmware name.");
-				return new VerifyParamsResult(false, "");
+				out.println("Response did not contain firmware name.");
+				return VerifyParamsResult.NOT_VERIFIED;
 			}
 
 			if ( firmwareParams.major_version < 0 ) {
-				System.out.println("Response did not contain major version number.");
-				return new VerifyParamsResult(false, "");
+				out.println("Response did not contain major version number.");
+				return VerifyParamsResult.NOT_VERIFIED;
 			}
 
 			if ( firmwareParams.minor_version < 0 ) {
-				System.out.println("Response did not contain minor version number.");
-				return new VerifyParamsResult(false, "");
+				out.println("Response did not contain minor version number.");
+				return VerifyParamsResult.NOT_VERIFIED;
 			}
 
 			firmwareName = String.format("%s-%d.%d", firmwareParams.name, firmwareParams.major_version, firmwareParams.minor_version);
-			System.out.printf("Detected firmware: %s%n", firmwareName);
-			System.out.printf("Checking firmware mods...%n");
-			boolean flagErr = false;
-			String output = "";
-			if ( firmwareParams.mods.length == 0 ) {
-				System.out.println("Controller firmware reported no mods.");
-			}
-			else {
-				for ( FirmwareMod mod : firmwareParams.mods ) {
-					if ( mod.name.length() == 0 ) {
-						return new VerifyParamsResult(true, String.format("--------------------------------%n" + 
-																	      "|   --Firmware has no mods--   |%n" +
-																	      "--------------------------------%n"));
-					}
-					//Find the mod in the manifest
-					int modIdx = -1;
-					for ( int i = 0; i < activeManifest.modSpecs.length; i++ ) {
-						if ( activeManifest.modSpecs[i].name.equals(mod.name) ) {
-							modIdx = i;
-							break;
-						}
-					}
-					if ( modIdx == -1 ) {
-						flagErr = true;
-						output += mod.toString(String.format("--------------------------------%n" + 
-															 "|     **Unknown Mod Found**    |%n"), 
-													  String.format("%n"));
-					}
-					else {
-						boolean flagIllegalVal = false;
-						Manifest.FirmwareModSpec modSpec = activeManifest.modSpecs[modIdx];
-						if ( mod.enabled && !modSpec.permitted ) {
-							flagErr = true;
-							output += mod.toString(String.format("--------------------------------%n" + 
-																 "|     **Illegal Mod Found**    |%n"), 
-														  String.format("%n"));
-						}
-						else {
-							for ( FirmwareModValue value : mod.values ) {
-								int valIdx = -1;
-								for ( int i = 0; i < modSpec.valueSpecs.length; i++ ) {
-									if ( modSpec.valueSpecs[i].name.equals(value.name) ) {
-										valIdx = i;
-										break;
-									}
-								}
-								if ( valIdx == -1 ) {
-									flagErr = true;
-									flagIllegalVal = true;
-									output += mod.toString(String.format("--------------------------------%n" + 
-																		 "| **Unknown Mod Value Found**  |%n"), 
-								  							String.format("%n"));
-								}
-								else {
-									Manifest.ModValueSpec valueSpec = modSpec.valueSpecs[valIdx];
-									if ( value.value > valueSpec.maxVal || value.value < valueSpec.minVal ) {
-										flagErr = true;
-										flagIllegalVal = true;
-										output += mod.toString(String.format("--------------------------------%n" + 
-																			 "| **Illegal Mod Values Found** |%n"), 
-									  							String.format("%n"));
-										break;
-									}
-								}
-							}
-						}
-						if ( !flagIllegalVal ) {
-							output += mod.toString(String.format("--------------------------------%n" + 
-																 "|         --Mod Info--         |%n"), 
-								  							String.format("%n"));
-						}
-					}
-				}
-			}
-			System.out.printf("Done.%n%n");
-			return new VerifyParamsResult(!flagErr, output);
+			out.printf("Detected firmware: %s%n", firmwareName);
+			portFirmware.put(serialPort.getPortName(), firmwareName);
+			//Keep talking to the running firmware so the image check can challenge it instead of resetting into the bootloader
+			appDigest = firmwareParams.supports(FlashDigest.CAPABILITY);
+			appDump = firmwareParams.supports(FlashDump.CAPABILITY);
+			if ( appDigest || appDump )
+				extensionPorts.add(serialPort.getPortName());
+			else
+				extensionPorts.remove(serialPort.getPortName());
+			out.printf("Checking firmware mods...%n");
+			if ( firmwareParams.mods.length == 0 )
+				out.println("Controller firmware reported no mods.");
+			VerifyParamsResult result = checkMods(firmwareParams.mods, manifest.rules);
+			out.printf("Done.%n%n");
+			return result;
 
 		} catch ( SerialPortException e ) {
 			handleSerialPortException(e);
-			return new VerifyParamsResult(false, "");
+			return VerifyParamsResult.NOT_VERIFIED;
 		} catch ( Exception e ) {
-			System.out.printf("An unhandled exception occurred.%n%n");
+			out.printf("An unhandled exception occurred.%n%n");
 			if ( debug ) {
-				e.printStackTrace();
+				e.printStackTrace(out);
 			}
-			return new VerifyParamsResult(false, "");
+			return VerifyParamsResult.NOT_VERIFIED;
+		} finally {
+			endPhase();
+			//Otherwise the session stays open for the image check
+			if ( firmwareName.isEmpty() )
+				session.close();
 		} //try
 
 	} //verifyParams
 
-	public boolean verifyFirmwareImage() {
-		System.out.println("Verifying firmware image of " + platform.name() + " on " + serialPort.getPortName());
-		if ( !isManifestLoaded() ) {
-			System.out.println("ERROR: Manifest is not loaded.");
-			return false;
+	//Checks every reported mod and its values against the manifest rules. Nothing is rendered until the report is asked for.
+	static VerifyParamsResult checkMods(FirmwareMod[] mods, ManifestRules rules) {
+		boolean flagErr = false;
+		ModCheck[] checks = new ModCheck[mods.length];
+		for ( int i = 0; i < mods.length; i++ ) {
+			if ( mods[i].name.length() == 0 )
+				return VerifyParamsResult.NO_MODS;
+			checks[i] = ModCheck.check(mods[i], rules.mod(mods[i].name));
+			flagErr |= !checks[i].passed();
 		}
-		if ( firmwareName == null || firmwareName.length() == 0 ) {
-			System.out.println("ERROR: Firmware name not available. Verify firmware parameters first.");
+		return new VerifyParamsResult(!flagErr, checks);
+	}
+
+	//Page ranges to read during boot: those of the image last detected on this port, or for a new port those of every
+	//permitted image, but only if together they cover no more than the largest one does. Otherwise nothing is read and
+	//the image check reads back just what the detected firmware needs after a second reset.
+	private List<int[]> captureRanges() {
+		if ( manifest.firmwareImages == null )
+			return Collections.<int[]>emptyList();
+		String lastFirmware = portFirmware.get(serialPort.getPortName());
+		if ( lastFirmware != null ) {
+			FirmwareImage img = manifest.rules.image(lastFirmware);
+			List<int[]> ranges = img == null ? null : captureRanges(img);
+			if ( ranges != null )
+				return ranges;
+		}
+		List<List<int[]>> ranges = new ArrayList<List<int[]>>();
+		long largest = 0;
+		for ( FirmwareImage img : manifest.firmwareImages ) {
+			List<int[]> imgRanges = captureRanges(img);
+			if ( imgRanges == null )
+				continue;
+			ranges.add(imgRanges);
+			largest = Math.max(largest, FlashCapture.size(imgRanges));
+		}
+		List<int[]> union = FlashCapture.union(ranges);
+		return FlashCapture.size(union) <= largest ? union : Collections.<int[]>emptyList();
+	}
+
+	//Page ranges of a permitted library image that is ready to compare against, or null if it isn't
+	private List<int[]> captureRanges(FirmwareImage img) {
+		if ( !img.permitted || !LibrarySync.shared().isReady(img) )
+			return null;
+		try {
+			HexImage libHex = ImageCache.shared().get(Paths.get("lib", img.name + ".hex"), img.hash);
+			return libHex == null ? null : libHex.pageRanges(flashPageSize);
+		} catch ( IOException e ) {
+			//Not available; it gets read back later if it turns out to be needed
+			return null;
+		}
+	}
+
+	//Reads ranges of flash while the bootloader is still running after the reset, then leaves it so the
+	//application starts. Returns false if the bootloader didn't answer, in which case the application boots on its own.
+	private boolean captureFlash(List<int[]> ranges) throws SerialPortException, InterruptedException {
+		Stk500 bootloader = session.bootloader();
+		try {
+			//Only a few attempts, so a missing bootloader doesn't eat into the application's handshake window
+			bootloader.connect(signature, Stk500.BOOT_SYNC_ATTEMPTS);
+		} catch ( Stk500Exception e ) {
+			if ( debug )
+				out.println(e.getMessage());
 			return false;
 		}
+		out.printf("Reading controller firmware...%n");
+		final FlashCapture captured = new FlashCapture(flashSize, flashPageSize);
 		try {
-			//Find the right firmware in the manifest
-			int fwIdx = -1;
-			for ( int i = 0; i < activeManifest.firmwareImages.length; i++ ) {
-				if ( activeManifest.firmwareImages[i].name.equals(firmwareName) ) {
-					fwIdx = i;
-					break;
+			for ( int[] range : ranges ) {
+				if ( range[0] + range[1] <= flashSize ) {
+					bootloader.readFlash(range[0], range[1], flashPageSize, (address, data, offset, length) -> {
+						captured.store(address, data, offset, length);
+						return true;
+					});
 				}
 			}
-			if ( fwIdx == -1 ) {
-				System.out.printf("Could not find firmware %s in manifest.%n%n", firmwareName);
-				return false;
+			capture = captured;
+		} catch ( Stk500Exception e ) {
+			if ( debug )
+				out.println(e.getMessage());
+		}
+		try {
+			bootloader.disconnect();
+			return true;
+		} catch ( Stk500Exception e ) {
+			if ( debug )
+				out.println(e.getMessage());
+			return false;
+		}
+	}
+
+	//Ends the serial session, e.g. if the image check is skipped after the parameters were read
+	public void close() {
+		session.close();
+		recordMetrics();
+	}
+
+	public ImageResult verifyFirmwareImage() {
+		out.println("Verifying firmware image of " + platform.name() + " on " + serialPort.getPortName());
+		if ( manifest == null || manifest.timestamp == 0 ) {
+			out.println("ERROR: Manifest is not loaded.");
+			return ImageResult.NOT_VERIFIED;
+		}
+		if ( firmwareName == null || firmwareName.length() == 0 ) {
+			out.println("ERROR: Firmware name not available. Verify firmware parameters first.");
+			return ImageResult.NOT_VERIFIED;
+		}
+		try {
+			//Find the right firmware in the manifest
+			FirmwareImage libImg = manifest.rules.image(firmwareName);
+			if ( libImg == null ) {
+				out.printf("Could not find firmware %s in manifest.%n%n", firmwareName);
+				return ImageResult.NOT_IN_MANIFEST;
 			}
-			FirmwareImage libImg = activeManifest.firmwareImages[fwIdx];
 			if ( !libImg.permitted ) {
-				System.out.printf("Firmware %s is not permitted.%n%n", firmwareName);
-				return false;
+				out.printf("Firmware %s is not permitted.%n%n", firmwareName);
+				return ImageResult.NOT_PERMITTED;
+			}
+
+			startPhase(Phase.LIBRARY);
+			//Fetch the image now if the background library sync hasn't got to it yet
+			if ( !LibrarySync.shared().isReady(libImg) )
+				out.printf("Fetching library firmware image...%n");
+			if ( !LibrarySync.shared().ensure(libImg) ) {
+				out.printf("Could not update library firmware image %s.%n", firmwareName);
 			}
 
 			Path libFWPath = Paths.get("lib", firmwareName + ".hex");
-			System.out.printf("Verifying library firmware image...%n");
-			if ( !verifyLibFirmwareImage(libFWPath, libImg.hash) ) {
-				System.out.printf("Could not verify controller firmware because library image does not match manifest.%n%n");
-				return false;
+			//The shared cache only re-reads, re-hashes and re-parses the library image when the file or its manifest hash changed
+			out.printf("Verifying library firmware image...%n");
+			HexImage libHex;
+			try {
+				libHex = ImageCache.shared().get(libFWPath, libImg.hash);
+			} catch ( HexFormatException e ) {
+				out.printf("Error in library firmware file. %s%n%n", e.getMessage());
+				return ImageResult.LIBRARY_ERROR;
+			} catch ( IOException e ) {
+				out.printf("Could not open firmware file.%n");
+				return ImageResult.LIBRARY_ERROR;
+			}
+			if ( libHex == null ) {
+				out.printf("Could not verify controller firmware because library image does not match manifest.%n%n");
+				return ImageResult.LIBRARY_ERROR;
+			}
+			out.printf("Done.%n%n");
+
+			int mismatch = -1;
+			ImageResult.Method method = ImageResult.Method.NONE;
+			boolean audit = false;
+			//Flash read during boot needs no more talking to the controller
+			if ( capture != null && capture.covers(libHex.pageRanges(flashPageSize)) ) {
+				out.println("Comparing controller firmware read during boot...");
+				startPhase(Phase.READBACK);
+				mismatch = capture.firstMismatch(libHex);
+				method = ImageResult.Method.CAPTURE;
 			}
-			System.out.printf("Done.%n%n");
 
-			//Get the firmware from the controller
-			if ( platform == Platform.ARDUINO ) {
-				Path avrdude = Paths.get("bin", "avrdude.exe");
-				Path avrdudeConf = Paths.get("etc", "avrdude.conf");
-				if ( Files.isExecutable(avrdude) ) {
-					if ( Files.isReadable(avrdudeConf) ) {
-						System.out.println("Downloading controller firmware (this can take a while)...");
-						String[] command = {avrdude.toString(), "-C" + avrdudeConf.toString(), "-v", "-patmega328p", "-carduino", "-P" + serialPort.getPortName(), "-Uflash:r:\"progmem.bin\":r", "-b57600"};
-						ProcessBuilder pb = new ProcessBuilder(command);
-						pb.redirectErrorStream(true);
-
-						Process process = pb.start();
-						
-						Scanner s = new Scanner(process.getInputStream()).useDelimiter("\\A");
-						String avrOut = s.hasNext() ? s.next() : "";
-
-						if ( debug )
-							System.out.printf("%s%n%n", avrOut);
-
-						int exitVal = -1;
-						try { //Shouldn't need the try since the scanner should block until the stream is done...
-							exitVal = process.exitValue();
-						} catch ( IllegalThreadStateException e ) {}
-
-						if ( exitVal != 0 ) {
-							process.destroy();
-							throw new AVRDudeException("avrdude encountered an error. Command: " + String.join(" ", command) + "%navrdude output: %n" + avrOut);
-						}
-					}
-					else {
-						throw new FileNotFoundException("Could not find avrdude.conf. Please check the etc directory.");
-					}
+			//Otherwise ask the firmware for a digest of its flash; only read it all back if that can't settle it
+			if ( method == ImageResult.Method.NONE && appDigest ) {
+				startPhase(Phase.DIGEST);
+				out.println("Checking controller firmware digest...");
+				Boolean digestMatched = checkDigest(libHex);
+				if ( digestMatched == null ) {
+					//Staying silent mustn't get the firmware out of the challenge, so it can't be the one that streams its flash either
+					out.printf("Controller did not answer the digest challenge. Falling back to the bootloader.%n%n");
+					audit = true;
+				}
+				else if ( !digestMatched ) {
+					out.printf("Controller firmware digest does not match firmware in library.%n%n");
+					return ImageResult.mismatched(ImageResult.Method.DIGEST, -1);
+				}
+				else if ( auditRandom.nextDouble() >= readbackAuditRate ) {
+					out.printf("Controller firmware matches %s in library.%n%n", firmwareName);
+					return ImageResult.matched(ImageResult.Method.DIGEST);
 				}
 				else {
-					throw new FileNotFoundException("Could not find avrdude. Please check the bin directory.");
+					//The spot check has to come from the bootloader; a dump is answered by the same firmware that answered the digest
+					out.printf("Digest matched. Reading back flash through the bootloader anyway as a spot check.%n%n");
+					audit = true;
 				}
 			}
 
-			System.out.printf("Comparing to firmware in library...%n");
-			byte[] progmem = Files.readAllBytes(Paths.get("progmem.bin"));
-			try ( Stream<String> lines = Files.lines(Paths.get("lib", firmwareName + ".hex")) ) {
-				int i = 1;
-  				for ( String line : (Iterable<String>)lines::iterator ) {
-  					IntelHexRecord record = new IntelHexRecord(line);
-  					if ( record.recordType == IntelHexRecord.DATA ) {
-	  					if ( !record.checksumValid() ) {
-	  						Files.delete(Paths.get("progmem.bin"));
-	  						System.out.printf("Error in library firmware file. Bad checksum at line %d.%n", i);
-	  					}
-	  					if ( record.byteCount > 0 ) {
-		  					//Check byte by byte
-		  					for ( int j = 0; j < record.byteCount; j++ ) {
-		  						if ( record.data[j] != progmem[record.address + j]) {
-		  							Files.delete(Paths.get("progmem.bin"));
-	  								System.out.printf("Controller firmware does not match firmware in library at byte %d.%n%n", record.address + j);
-	  								return false;
-		  						}
-		  					}
-		  				}
-	  				}
-  					i++;
-				};
-			} catch ( IOException e ) {
-				System.out.printf("Could not open firmware file.%n");
-				return false;
+			//Have the firmware stream its flash at a high baud rate if it can, which needs no reset into the bootloader
+			if ( method == ImageResult.Method.NONE && appDump && !audit ) {
+				out.println("Streaming and comparing controller firmware...");
+				startPhase(Phase.READBACK);
+				try {
+					mismatch = dumpProgmem(libHex);
+					method = ImageResult.Method.DUMP;
+				} catch ( FlashDumpException e ) {
+					out.printf("%s Falling back to the bootloader.%n", e.getMessage());
+				}
+				//A matching dump is the firmware's own word too, so it is spot checked like a matching digest
+				if ( method == ImageResult.Method.DUMP && mismatch < 0 && auditRandom.nextDouble() < readbackAuditRate ) {
+					out.printf("Dump matched. Reading back flash through the bootloader anyway as a spot check.%n%n");
+					method = ImageResult.Method.NONE;
+				}
 			}
-			Files.delete(Paths.get("progmem.bin"));
-			System.out.printf("Controller firmware matches %s in library.%n%n", firmwareName);
-			return true;
-		} catch ( FileNotFoundException e ) {
-			System.out.println(e.getMessage());
-			return false;
-		} catch ( AVRDudeException e ) {
-			System.out.println(e.getMessage());
-			return false;
+
+			//Compare the controller firmware page by page as it is read, but only the pages the library image covers
+			if ( method == ImageResult.Method.NONE ) {
+				out.println("Downloading and comparing controller firmware (this can take a while)...");
+				startPhase(Phase.READBACK);
+				mismatch = compareProgmem(libHex);
+				method = ImageResult.Method.BOOTLOADER;
+			}
+			if ( mismatch >= 0 )
+				out.printf("Controller firmware does not match firmware in library at byte %d.%n%n", mismatch);
+			else
+				out.printf("Controller firmware matches %s in library.%n%n", firmwareName);
+			return ImageResult.compared(method, mismatch);
+		} catch ( Stk500Exception e ) {
+			out.println(e.getMessage());
+			return ImageResult.NOT_VERIFIED;
+		} catch ( SerialPortException e ) {
+			handleSerialPortException(e);
+			return ImageResult.NOT_VERIFIED;
 		} catch ( Exception e ) {
 			if ( debug ) {
-				e.printStackTrace();
+				e.printStackTrace(out);
 			}
-			System.out.printf("An unhandled exception occurred.%n");
-			return false;
+			out.printf("An unhandled exception occurred.%n");
+			return ImageResult.NOT_VERIFIED;
+		} finally {
+			endPhase();
+			session.close();
 		}
 
 	} //verifySoftwareImage()
 
+	//Streams the segments the library image covers out of the running firmware and compares them on arrival.
+	//Returns the address of the first mismatch (stopping the dump there) or -1 if everything matched.
+	private int dumpProgmem(final HexImage libHex) throws SerialPortException, FlashDumpException, InterruptedException {
+		final int[] mismatch = {-1};
+		new FlashDump(session).read(libHex, dumpBaudRate, (address, data, offset, length) -> {
+			mismatch[0] = libHex.firstMismatch(address, data, offset, length);
+			return mismatch[0] < 0;
+		});
+		return mismatch[0];
+	}
+
+	//Challenges the running firmware for a digest of the flash the library image covers. Returns whether it
+	//matched, or null if the firmware gave no usable answer.
+	private Boolean checkDigest(HexImage libHex) throws SerialPortException, InterruptedException {
+		FlashDigest digest = new FlashDigest(libHex);
+		SerialReceiver receiver = session.receiver();
+		receiver.clear();
+		serialPort.writeString(digest.request());
+		if ( !receiver.awaitTerminator(FlashDigest.RESPONSE_TIMEOUT) )
+			return null;
+		try {
+			long answer = JsonBinder.readDigest(receiver.json());
+			if ( debug )
+				out.printf("Digest: expected %08X, received %08X.%n", digest.expected(), answer);
+			return answer == digest.expected();
+		} catch ( JsonSyntaxException e ) {
+			if ( debug )
+				out.println(e.getMessage());
+			return null;
+		}
+	}
+
+	//Resets into the controller's bootloader on the session's port, streams the pages the library image covers out of it
+	//and compares them on arrival. Returns the address of the first mismatch (stopping the read there) or -1 if
+	//everything matched.
+	private int compareProgmem(final HexImage libHex) throws SerialPortException, Stk500Exception, InterruptedException {
+		final int[] mismatch = {-1};
+		session.open(bootloaderBaudRate, dataBits, stopBits, parity);
+		session.reset();
+		Stk500 bootloader = session.bootloader();
+		bootloader.connect(signature);
+		try {
+			for ( int[] range : libHex.pageRanges(flashPageSize) ) {
+				if ( range[0] + range[1] > flashSize )
+					throw new Stk500Exception(String.format("Library image extends past the end of flash (0x%X).", range[0] + range[1]));
+				boolean completed = bootloader.readFlash(range[0], range[1], flashPageSize, (address, data, offset, length) -> {
+					mismatch[0] = libHex.firstMismatch(address, data, offset, length);
+					return mismatch[0] < 0;
+				});
+				if ( !completed )
+					break;
+			}
+		} finally {
+			bootloader.disconnect();
+		}
+		return mismatch[0];
+	}
+
 	public static boolean loadRemoteManifest() {
 		System.out.println("Loading remote manifest...");
 		//Get the latest manifest
 		try {
-			remoteManifest.load(new URL(Verifier.manifestURL));
+			remoteManifest.set(Manifest.load(new URL(Verifier.manifestURL)));
 			System.out.printf("Done.%n%n");
 			return true;
 		} catch ( JsonSyntaxException e ) {
@@ -411,7 +622,7 @@ public class Verifier {
 	public static boolean loadLocalManifest() {
 		System.out.println("Loading local manifest...");
 		try {
-			localManifest.load(Paths.get("lib", "manifest.json"));
+			localManifest.set(Manifest.load(Paths.get("lib", "manifest.json")));
 			System.out.printf("Done.%n%n");
 			return true;
 		} catch ( JsonSyntaxException e ) {
@@ -426,75 +637,14 @@ public class Verifier {
 
 	}
 
-	public static boolean updateLibFromManifest() {
-		System.out.printf("Updating firmware images...%n");
-		boolean flagErr = false;
-		for ( Manifest.FirmwareImage img : activeManifest.firmwareImages ) {
-			Path imgPath = Paths.get("lib", img.name + ".hex");
-			if ( Files.isReadable(imgPath) ) {
-				System.out.printf("%s found. Verifying...%n", img.name);
-				//Get SHA2 hash
-				if ( verifyLibFirmwareImage(imgPath, img.hash) ) {
-					System.out.printf("Done.%n");
-				}
-				else {
-					System.out.printf("%s does not match manifest.%n", img.name);
-					if ( !downloadAndVerifyLibFirmwareImage(imgPath, img.url, img.hash) )
-						flagErr = true;
-				}
-			}
-			else {
-				//Attempt to download
-				System.out.printf("%s was not found.%n", img.name);
-				if ( !downloadAndVerifyLibFirmwareImage(imgPath, img.url, img.hash) )
-					flagErr = true;
-			}
-
-		}
-		System.out.printf("%n");
-		return !flagErr;
-	}
-
-	public static boolean downloadAndVerifyLibFirmwareImage(Path path, String url, String hash) {
-		System.out.printf("Downloading image from %s...", url);
-		if ( downloadLibFirmwareImage(path, url) ) {
-			System.out.printf("Done.%nVerifying...");
-			if( verifyLibFirmwareImage(path, hash) ) {
-				System.out.printf("Done.%n");
-				return true;
-			}
-			else {
-				System.out.printf("Failed! Image does not match manifest.%n");
-				return false;
-			}
-		}
-		else {
-			System.out.printf("Failed!%n");
-			return false;
-		}
-	}
-
-	public static boolean downloadLibFirmwareImage(Path path, String url) {
-		try {
-			ReadableByteChannel rbc = Channels.newChannel(new URL(url).openStream());
-			FileOutputStream fos = new FileOutputStream(path.toString());
-			fos.getChannel().transferFrom(rbc, 0, 1000000); //1MB max
-			rbc.close();
-			fos.close();
-			return true;
-		} catch ( Exception e ) {
-			return false;
-		}
+	public static void prefetchLib() {
+		System.out.printf("Updating firmware images in the background...%n%n");
+		LibrarySync.shared().prefetch(activeManifest.get().firmwareImages);
 	}
 
 	public static boolean verifyLibFirmwareImage(Path path, String hash) {
 		try {
-			DigestInputStream dis = new DigestInputStream(Files.newInputStream(path), MessageDigest.getInstance("SHA-256"));
-			BufferedInputStream bis = new BufferedInputStream(dis);
-			int i;
-			while ((i = bis.read()) != -1) {}
-			bis.close();
-			String fileHash = bytesToHex(dis.getMessageDigest().digest());
+			String fileHash = HashIndex.shared().hash(path);
 			if ( debug )
 				System.out.printf("File Hash: %s | Expected Hash: %s|%n", fileHash, hash);
 			if ( !(hash.equals(fileHash)) ) {
@@ -526,14 +676,16 @@ public class Verifier {
 	public static void saveRemoteManifestToLocal() {
 		System.out.printf("Updating manifest with remote copy...%n");
 		try {
-			localManifest = remoteManifest;
+			Manifest remote = remoteManifest.get();
 			Path manifestPath = Paths.get("lib", "manifest.json");
 			Path oldManifestPath = Paths.get("lib","manifest_old.json");
 			if ( Files.isReadable(manifestPath) )
 				Files.copy(manifestPath, oldManifestPath, REPLACE_EXISTING);
 			try {
-				Gson gson = new GsonBuilder().setPrettyPrinting().create();
-				Files.write(manifestPath, gson.toJson(localManifest).getBytes());
+				try ( Writer writer = Files.newBufferedWriter(manifestPath, StandardCharsets.UTF_8) ) {
+					JsonBinder.writeManifest(writer, remote);
+				}
+				localManifest.set(remote);
 				System.out.printf("Done.%n%n");
 			} catch ( IOException e ) {
 				if ( debug )
@@ -548,139 +700,121 @@ public class Verifier {
 	}
 
 	public static void useLocalManifest() {
-		activeManifest = localManifest;
+		activeManifest.set(localManifest.get());
 	}
 
 	public static void useRemoteManifest() {
-		activeManifest = remoteManifest;
+		activeManifest.set(remoteManifest.get());
+	}
+
+	//Makes a manifest that was never saved active, e.g. a test fixture
+	static void useManifest(Manifest manifest) {
+		activeManifest.set(manifest);
 	}
 
 	public static boolean isRemoteManifestNewer() {
-		return remoteManifest.timestamp > localManifest.timestamp ? true : false;
+		return remoteManifest.get().timestamp > localManifest.get().timestamp ? true : false;
 	}
 
 	public static boolean isManifestLoaded() {
-		return activeManifest.timestamp != 0;
+		return activeManifest.get().timestamp != 0;
+	}
+
+	public static Manifest activeManifest() {
+		return activeManifest.get();
+	}
+
+	//Rereads lib/manifest.json after it changes on disk. The new snapshot is only published if it loads cleanly,
+	//and only becomes active if the local manifest was the active one; verifications already running keep theirs.
+	public static boolean reloadLocalManifest() {
+		Manifest reloaded;
+		try {
+			reloaded = Manifest.load(Paths.get("lib", "manifest.json"));
+		} catch ( JsonSyntaxException e ) {
+			System.out.printf("WARNING: Changed local manifest is improperly formatted. Keeping the current one.%n");
+			return false;
+		} catch ( IOException e ) {
+			if ( debug )
+				System.out.println(e.toString());
+			System.out.printf("WARNING: Could not reload local manifest. Keeping the current one.%n");
+			return false;
+		}
+		Manifest previous = localManifest.getAndSet(reloaded);
+		if ( activeManifest.compareAndSet(previous, reloaded) || activeManifest.compareAndSet(Manifest.EMPTY, reloaded) ) {
+			System.out.printf("Reloaded local manifest (timestamp %d).%n", reloaded.timestamp);
+			return true;
+		}
+		return false;
 	}
 
 	public void handleSerialPortException (SerialPortException e) {
 		switch ( e.getExceptionType() ) {
 			case SerialPortException.TYPE_PORT_BUSY:
-				System.out.println("Serial port is busy. Please check USB connection and exit all serial monitoring terminals.");
+				out.println("Serial port is busy. Please check USB connection and exit all serial monitoring terminals.");
 				break;
 			case SerialPortException.TYPE_PORT_NOT_FOUND:
-				System.out.println("Serial port could not be found. Please check USB connection.");
+				out.println("Serial port could not be found. Please check USB connection.");
 				break;
 			default:
-				System.out.println("An unhandled serial port exception occurred: " + e.getMessage());
+				out.println("An unhandled serial port exception occurred: " + e.getMessage());
 		}
 		if ( serialPort.isOpened() ) {
 			try {
 				if ( !serialPort.closePort() )
-					System.out.println("Warning: could not close serial port. Restart may be required if port remains busy.");
+					out.println("Warning: could not close serial port. Restart may be required if port remains busy.");
 			} catch ( SerialPortException e2 ) {
-				System.out.println("Warning: could not close serial port. Restart may be required if port remains busy.");
+				out.println("Warning: could not close serial port. Restart may be required if port remains busy.");
 			}
 		}
 	}
 
-	public class VerifyParamsResult {
-		public boolean succeeded;
-		public String output;
+	public static final class VerifyParamsResult {
+		//The parameters couldn't be read or checked, e.g. no response or invalid JSON
+		public static final VerifyParamsResult NOT_VERIFIED = new VerifyParamsResult(false, false, new ModCheck[]{});
+		//The firmware reported a mod with no name, which is how it says it has none
+		public static final VerifyParamsResult NO_MODS = new VerifyParamsResult(true, true, new ModCheck[]{});
 
-		public VerifyParamsResult(boolean succeeded, String output) {
+		public final boolean succeeded;
+		public final boolean noMods;
+		public final List<ModCheck> mods;
+
+		VerifyParamsResult(boolean succeeded, ModCheck[] mods) {
+			this(succeeded, false, mods);
+		}
+
+		private VerifyParamsResult(boolean succeeded, boolean noMods, ModCheck[] mods) {
 			this.succeeded = succeeded;
-			this.output = output;
+			this.noMods = noMods;
+			this.mods = Collections.unmodifiableList(Arrays.asList(mods));
 		}
 	}
 
-	class FirmwareParams {
+	static class FirmwareParams {
 		public String name = "";
 		public int major_version = -1;
 		public int minor_version = -1;
 		public FirmwareMod[] mods = new FirmwareMod[]{};
+		//Optional protocol extensions the firmware supports, e.g. FlashDigest.CAPABILITY
+		public String[] capabilities = new String[]{};
+
+		public boolean supports(String capability) {
+			for ( String c : capabilities ) {
+				if ( c.equals(capability) )
+					return true;
+			}
+			return false;
+		}
 	}
 
-	class FirmwareMod {
+	static class FirmwareMod {
 		public String name = "";
 		public boolean enabled;
 		public FirmwareModValue[] values = new FirmwareModValue[]{};
-
-		public String toString(String prefix, String suffix) {
-			Formatter formatter = new Formatter(new StringBuilder());
-			if ( prefix.length() > 0 )
-				formatter.format("%s", prefix);
-			formatter.format("--------------------------------%n");
-			formatter.format("|  Name:                       |%n");
-			formatter.format("|    %-20s      |%n", name);
-			formatter.format("|%30s|%n", "");
-			formatter.format("|  Enabled: %-19s|%n", (enabled ? "Yes" : "No"));
-			formatter.format("|%30s|%n", "");
-			formatter.format("|  Values:                     |%n");
-			for ( FirmwareModValue value : values ) {
-				formatter.format("|    %-26s|%n", new Formatter().format("%s: %d", value.name, value.value).toString());
-			}
-			formatter.format("--------------------------------%n");
-			if ( suffix.length() > 0 )
-				formatter.format("%s", suffix);
-
-			return formatter.toString();
-		}
-
 	}
 
-	class FirmwareModValue {
+	static class FirmwareModValue {
 		public String name = "";
 		public int value = Integer.MAX_VALUE; //This should trip any value check if the firmware does not properly respond with a value
 	}
 
-	class IntelHexRecord {
-		public static final int DATA = 0;
-		public static final int END_OF_FILE = 1;
-
-		//Ints to avoid sign issues
-		public int byteCount = 0;
-		public int address = 0;
-		public int recordType = DATA;
-		public byte[] data;
-		public int checksum = 0;
-
-		public IntelHexRecord(String record) {
-			if ( record.length() >= 11 && record.charAt(0) == ':') {
-				byteCount = Integer.parseInt(record.substring(1,3), 16);
-				address = Integer.parseInt(record.substring(3,7), 16);
-				recordType = (byte) (Integer.parseInt(record.substring(7,9), 16) & 0xFF);
-				if ( byteCount > 0 ) {
-					data = new byte[byteCount];
-					for ( int i = 0; i < byteCount; i++ ) {
-						data[i] = (byte) (Integer.parseInt(record.substring(2*i + 9, 2*i + 9 + 2), 16) & 0xFF);
-					}
-				}
-				checksum = Integer.parseInt(record.substring(9 + byteCount*2,9 + byteCount*2 + 2), 16);
-			}
-		}
-
-		public boolean checksumValid() {
-			int sum = byteCount + (address & 0xFF) + ((address & 0xFF00) >> 8) + recordType;
-			if ( data != null ) {
-				for ( byte datum : data ) {
-					sum += ((int) datum & 0xFF);
-				}
-			}
-			sum = (~sum + 1) & 0xFF;
-			if ( sum == checksum ) 
-				return true;
-			else
-				return false;
-		}
-	}
-
 } //GCCVerify
-
-@SuppressWarnings("serial")
-class AVRDudeException extends Exception {
-	public AVRDudeException(String message) {
-		super(message);
-	}
-}
-
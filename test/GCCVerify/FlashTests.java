@@ -0,0 +1,166 @@
+/**
+ * FlashTests.java verifies a fixture image on an EmulatedController through
+ * each way the image check can read the controller's flash, checking the
+ * framing of the extensions as well as the verdicts. The fixture image is
+ * written to lib/ under the working directory for the duration of each test.
+ *
+ * Contains the FlashTests class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import static GCCVerify.Tests.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+public class FlashTests {
+
+	private static final String FIRMWARE = "GCCVerifyTest";
+	private static final String IMAGE = FIRMWARE + "-1.0";
+	//Three and a half pages, so the image ends partway through one
+	private static final int IMAGE_SIZE = 448;
+	private static final int CORRUPT_ADDRESS = 0x100;
+
+	static void addTo(Map<String, Tests.Case> cases) {
+		cases.put("flash.digest", () -> {
+			EmulatedController controller = controller("emu-digest", FlashDigest.CAPABILITY);
+			checkResult(ImageResult.Verdict.MATCHED, ImageResult.Method.DIGEST, -1, verify(controller, 0));
+		});
+		cases.put("flash.digestMismatch", () -> {
+			EmulatedController controller = controller("emu-digest-mismatch", FlashDigest.CAPABILITY);
+			controller.writeFlash(CORRUPT_ADDRESS, new byte[]{0x55});
+			//A digest can't say where the flash differs
+			checkResult(ImageResult.Verdict.MISMATCHED, ImageResult.Method.DIGEST, -1, verify(controller, 0));
+		});
+		cases.put("flash.digestUnanswered", () -> {
+			//Ignoring the challenge falls back to the bootloader, not to a dump from the same firmware
+			EmulatedController controller = controller("emu-digest-unanswered", FlashDigest.CAPABILITY, FlashDump.CAPABILITY);
+			controller.setDigestAnswered(false);
+			checkResult(ImageResult.Verdict.MATCHED, ImageResult.Method.BOOTLOADER, -1, verify(controller, 0));
+		});
+		cases.put("flash.bootloader", () -> {
+			EmulatedController controller = controller("emu-bootloader");
+			checkResult(ImageResult.Verdict.MATCHED, ImageResult.Method.BOOTLOADER, -1, verify(controller, 0));
+			controller.writeFlash(CORRUPT_ADDRESS, new byte[]{0x55});
+			checkResult(ImageResult.Verdict.MISMATCHED, ImageResult.Method.BOOTLOADER, CORRUPT_ADDRESS, verify(controller, 0));
+		});
+		cases.put("flash.dump", () -> {
+			EmulatedController controller = controller("emu-dump", FlashDump.CAPABILITY);
+			checkResult(ImageResult.Verdict.MATCHED, ImageResult.Method.DUMP, -1, verify(controller, 0));
+			controller.writeFlash(CORRUPT_ADDRESS, new byte[]{0x55});
+			checkResult(ImageResult.Verdict.MISMATCHED, ImageResult.Method.DUMP, CORRUPT_ADDRESS, verify(controller, 0));
+		});
+		cases.put("flash.dumpSlowLink", () -> {
+			//Firmware that accepts less than the offered baud rate is streamed at what it accepted
+			EmulatedController controller = controller("emu-dump-slow", FlashDump.CAPABILITY);
+			controller.setMaxDumpBaudRate(9600);
+			checkResult(ImageResult.Verdict.MATCHED, ImageResult.Method.DUMP, -1, verify(controller, 0));
+		});
+		cases.put("flash.dumpOfferedRate", () -> {
+			//The firmware could go faster, but is held to what is offered
+			EmulatedController controller = controller("emu-dump-offered", FlashDump.CAPABILITY);
+			int previousBaudRate = Verifier.dumpBaudRate;
+			Verifier.dumpBaudRate = 57600;
+			try {
+				checkResult(ImageResult.Verdict.MATCHED, ImageResult.Method.DUMP, -1, verify(controller, 0));
+			} finally {
+				Verifier.dumpBaudRate = previousBaudRate;
+			}
+		});
+		cases.put("flash.audit", () -> {
+			//A spot check after a matching digest reads the bootloader, even if the firmware could stream its flash
+			EmulatedController controller = controller("emu-audit", FlashDigest.CAPABILITY, FlashDump.CAPABILITY);
+			checkResult(ImageResult.Verdict.MATCHED, ImageResult.Method.BOOTLOADER, -1, verify(controller, 1));
+			checkResult(ImageResult.Verdict.MATCHED, ImageResult.Method.DIGEST, -1, verify(controller, 0));
+			//So is one after a matching dump
+			controller = controller("emu-audit-dump", FlashDump.CAPABILITY);
+			checkResult(ImageResult.Verdict.MATCHED, ImageResult.Method.BOOTLOADER, -1, verify(controller, 1));
+			checkResult(ImageResult.Verdict.MATCHED, ImageResult.Method.DUMP, -1, verify(controller, 0));
+		});
+	}
+
+	//Bytes of the fixture image
+	private static String fixtureHex() {
+		StringBuilder hex = new StringBuilder();
+		for ( int address = 0; address < IMAGE_SIZE; address += 16 ) {
+			int[] data = new int[16];
+			for ( int i = 0; i < data.length; i++ )
+				data[i] = ((address + i) * 7 + 3) & 0xFF;
+			hex.append(HexImageTests.record(address, HexImage.DATA, data));
+		}
+		return hex.append(HexImageTests.eof()).toString();
+	}
+
+	//A controller running the fixture image whose response lists the given extensions
+	private static EmulatedController controller(String portName, String... capabilities) throws Exception {
+		EmulatedController controller = new EmulatedController(portName);
+		controller.loadImage(HexImageTests.parse(fixtureHex()));
+		StringBuilder response = new StringBuilder("{\"name\":\"" + FIRMWARE + "\",\"major_version\":1,\"minor_version\":0,\"mods\":[],\"capabilities\":[");
+		for ( int i = 0; i < capabilities.length; i++ )
+			response.append(i > 0 ? ",\"" : "\"").append(capabilities[i]).append('"');
+		controller.setResponse(response.append("]}").toString());
+		return controller;
+	}
+
+	//Verifies the controller against the fixture image and manifest, without reading flash during boot
+	private static ImageResult verify(EmulatedController controller, double auditRate) throws Exception {
+		Path lib = Paths.get("lib");
+		Path hexPath = lib.resolve(IMAGE + ".hex");
+		boolean createdLib = !Files.isDirectory(lib);
+		Manifest previousManifest = Verifier.activeManifest();
+		double previousAuditRate = Verifier.readbackAuditRate;
+		boolean previousCapture = Verifier.captureDuringBoot;
+		try {
+			Files.createDirectories(lib);
+			Files.write(hexPath, fixtureHex().getBytes(StandardCharsets.US_ASCII));
+			Verifier.useManifest(Manifest.load("{\"timestamp\":1,\"modSpecs\":[],\"firmwareImages\":[{\"name\":\"" + IMAGE + "\",\"permitted\":true," +
+											   "\"hash\":\"" + HashIndex.sha256(hexPath) + "\",\"url\":\"https://example.com/" + IMAGE + ".hex\"}]}"));
+			Verifier.readbackAuditRate = auditRate;
+			Verifier.captureDuringBoot = false;
+			try ( Verifier verifier = new Verifier(controller) ) {
+				verifier.setOutput(new PrintStream(new ByteArrayOutputStream(), false, "UTF-8"));
+				verifier.selectPlatform(Verifier.Platform.ARDUINO);
+				check(verifier.verifyParams().succeeded, "parameters");
+				checkEquals(IMAGE, verifier.firmwareName(), "detected firmware");
+				return verifier.verifyFirmwareImage();
+			}
+		} finally {
+			Verifier.useManifest(previousManifest);
+			Verifier.readbackAuditRate = previousAuditRate;
+			Verifier.captureDuringBoot = previousCapture;
+			Files.deleteIfExists(hexPath);
+			if ( createdLib )
+				Files.deleteIfExists(lib);
+		}
+	}
+
+	private static void checkResult(ImageResult.Verdict verdict, ImageResult.Method method, int mismatchOffset, ImageResult result) {
+		checkEquals(verdict, result.verdict, "verdict");
+		checkEquals(method, result.method, "method");
+		checkEquals(mismatchOffset, result.mismatchOffset, "mismatch offset");
+	}
+
+}
@@ -0,0 +1,125 @@
+/**
+ * HexImageTests.java checks Intel hex parsing, including extended segment and
+ * linear address records and malformed input, and the comparisons and page
+ * ranges the image check is built on.
+ *
+ * Contains the HexImageTests class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import static GCCVerify.Tests.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+public class HexImageTests {
+
+	static void addTo(Map<String, Tests.Case> cases) {
+		cases.put("hex.dataRecords", () -> {
+			HexImage image = parse(record(0x0000, HexImage.DATA, 1, 2, 3, 4) + record(0x0004, HexImage.DATA, 5, 6) + eof());
+			checkEquals(1, image.segmentCount(), "contiguous records merge into one segment");
+			checkEquals(0, image.segmentAddress(0), "segment address");
+			checkEquals(6, image.segmentLength(0), "segment length");
+			checkEquals(6, image.size(), "size");
+			checkEquals(6, (int) image.segmentData(0).get(5), "last byte");
+		});
+		cases.put("hex.extendedLinearAddress", () -> {
+			HexImage image = parse(record(0xFFFE, HexImage.DATA, 1, 2) + record(0, HexImage.EXTENDED_LINEAR_ADDRESS, 0x00, 0x01) +
+								   record(0x0000, HexImage.DATA, 3, 4) + eof());
+			checkEquals(1, image.segmentCount(), "records either side of the 64KB boundary join up");
+			checkEquals(0xFFFE, image.segmentAddress(0), "segment address");
+			checkEquals(4, image.segmentLength(0), "segment length");
+		});
+		cases.put("hex.extendedSegmentAddress", () -> {
+			HexImage image = parse(record(0, HexImage.EXTENDED_SEGMENT_ADDRESS, 0x12, 0x00) + record(0x0010, HexImage.DATA, 7) + eof());
+			checkEquals(0x12000 + 0x10, image.segmentAddress(0), "segment base is the record value times 16");
+		});
+		cases.put("hex.outOfOrderRecords", () -> {
+			HexImage image = parse(record(0x0100, HexImage.DATA, 9) + record(0x0000, HexImage.DATA, 8) + eof());
+			checkEquals(2, image.segmentCount(), "segments");
+			checkEquals(0x0000, image.segmentAddress(0), "segments are sorted by address");
+			checkEquals(0x0100, image.segmentAddress(1), "second segment");
+		});
+		cases.put("hex.stopsAtEndOfFile", () -> {
+			HexImage image = parse(record(0, HexImage.DATA, 1) + eof() + "garbage");
+			checkEquals(1, image.size(), "size");
+		});
+		cases.put("hex.malformed", () -> {
+			String good = record(0, HexImage.DATA, 1, 2);
+			String badChecksum = good.substring(0, good.length() - 4) + "00\r\n";
+			checkThrows(HexFormatException.class, () -> parse(badChecksum + eof()), "bad checksum");
+			checkThrows(HexFormatException.class, () -> parse(good.replace(':', ';') + eof()), "missing ':'");
+			checkThrows(HexFormatException.class, () -> parse(good.replace("0102", "01G2") + eof()), "invalid digit");
+			checkThrows(HexFormatException.class, () -> parse(":0200"), "truncated record");
+			checkThrows(HexFormatException.class, () -> parse(record(0, HexImage.EXTENDED_LINEAR_ADDRESS, 1) + eof()), "short extended address");
+		});
+		cases.put("hex.firstMismatch", () -> {
+			HexImage image = parse(record(0x0010, HexImage.DATA, 1, 2, 3, 4) + record(0x0020, HexImage.DATA, 5, 6) + eof());
+			byte[] flash = new byte[0x30];
+			flash[0x10] = 1; flash[0x11] = 2; flash[0x12] = 3; flash[0x13] = 4; flash[0x20] = 5; flash[0x21] = 6;
+			checkEquals(-1, image.firstMismatch(0, flash, 0, flash.length), "matching flash");
+			flash[0x05] = 0x55;
+			flash[0x18] = 0x55;
+			checkEquals(-1, image.firstMismatch(0, flash, 0, flash.length), "bytes the image doesn't cover are ignored");
+			flash[0x21] = 0x55;
+			checkEquals(0x21, image.firstMismatch(0, flash, 0, flash.length), "mismatch in the second segment");
+			flash[0x12] = 0x55;
+			checkEquals(0x12, image.firstMismatch(0, flash, 0, flash.length), "first mismatch wins");
+			checkEquals(0x12, image.firstMismatch(0x12, flash, 0x12, 4), "partial read at an offset");
+			checkEquals(-1, image.firstMismatch(0x13, flash, 0x13, 0x0D), "read that skips the mismatch");
+		});
+		cases.put("hex.pageRanges", () -> {
+			HexImage image = parse(record(0x0010, HexImage.DATA, 1) + record(0x0090, HexImage.DATA, 2) + record(0x0300, HexImage.DATA, 3) + eof());
+			List<int[]> ranges = image.pageRanges(0x80);
+			checkEquals(2, ranges.size(), "touching pages merge, distant ones don't");
+			checkEquals(0x0000, ranges.get(0)[0], "first range start");
+			checkEquals(0x0100, ranges.get(0)[1], "first range length");
+			checkEquals(0x0300, ranges.get(1)[0], "second range start");
+			checkEquals(0x0080, ranges.get(1)[1], "second range length");
+			check(image.pageRanges(0x80) == ranges, "ranges are cached per page size");
+			List<int[]> large = image.pageRanges(0x100);
+			checkEquals(2, large.size(), "other page sizes are computed again");
+			checkEquals(0x0100, large.get(0)[1], "first large range length");
+		});
+	}
+
+	static HexImage parse(String hex) throws HexFormatException {
+		return HexImage.parse(ByteBuffer.wrap(hex.getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	//One record with its checksum
+	static String record(int offset, int type, int... data) {
+		StringBuilder record = new StringBuilder(String.format(":%02X%04X%02X", data.length, offset, type));
+		int sum = data.length + (offset >> 8) + (offset & 0xFF) + type;
+		for ( int datum : data ) {
+			record.append(String.format("%02X", datum));
+			sum += datum;
+		}
+		return record.append(String.format("%02X\r\n", -sum & 0xFF)).toString();
+	}
+
+	static String eof() {
+		return record(0, HexImage.END_OF_FILE);
+	}
+
+}
@@ -0,0 +1,79 @@
+/**
+ * HistogramTests.java checks the latency histogram's counts and percentiles:
+ * exact below 32, within a bucket's width above that, and never above the
+ * largest value recorded.
+ *
+ * Contains the HistogramTests class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import static GCCVerify.Tests.*;
+
+import java.util.Map;
+
+public class HistogramTests {
+
+	static void addTo(Map<String, Tests.Case> cases) {
+		cases.put("histogram.empty", () -> {
+			Histogram histogram = new Histogram();
+			checkEquals(0L, histogram.count(), "count");
+			checkEquals(0L, histogram.mean(), "mean");
+			checkEquals(0L, histogram.percentile(0.5), "percentile");
+		});
+		cases.put("histogram.exactBelow32", () -> {
+			Histogram histogram = new Histogram();
+			for ( long value = 20; value >= 1; value-- )
+				histogram.record(value);
+			checkEquals(20L, histogram.count(), "count");
+			checkEquals(20L, histogram.max(), "max");
+			checkEquals(10L, histogram.mean(), "mean");
+			checkEquals(1L, histogram.percentile(0), "p0 is the smallest value");
+			checkEquals(10L, histogram.percentile(0.5), "p50");
+			checkEquals(19L, histogram.percentile(0.95), "p95");
+			checkEquals(20L, histogram.percentile(1), "p100");
+		});
+		cases.put("histogram.bucketWidth", () -> {
+			for ( long value = 32; value < 1L << 40; value = value * 3 / 2 + 1 ) {
+				Histogram histogram = new Histogram();
+				histogram.record(value);
+				histogram.record(value * 4);
+				long p50 = histogram.percentile(0.5);
+				check(p50 >= value && p50 <= value + value / 16, String.format("p50 of %d was %d", value, p50));
+			}
+		});
+		cases.put("histogram.cappedAtMax", () -> {
+			Histogram histogram = new Histogram();
+			histogram.record(1000);
+			checkEquals(1000L, histogram.percentile(0.99), "the bucket's upper bound is capped at the max");
+			histogram.record(2000);
+			checkEquals(1023L, histogram.percentile(0.5), "upper bound of 1000's bucket");
+			checkEquals(2000L, histogram.percentile(1), "p100");
+		});
+		cases.put("histogram.negative", () -> {
+			Histogram histogram = new Histogram();
+			histogram.record(-5);
+			checkEquals(1L, histogram.count(), "count");
+			checkEquals(0L, histogram.max(), "negative values count as 0");
+			checkEquals(0L, histogram.percentile(1), "p100");
+		});
+	}
+
+}
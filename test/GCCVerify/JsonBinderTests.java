@@ -0,0 +1,87 @@
+/**
+ * JsonBinderTests.java checks that manifests and firmware parameters survive
+ * a write and read back unchanged, and how the binder treats missing, null,
+ * unknown and malformed fields.
+ *
+ * Contains the JsonBinderTests class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import static GCCVerify.Tests.*;
+
+import java.util.Map;
+import com.google.gson.JsonSyntaxException;
+
+public class JsonBinderTests {
+
+	static void addTo(Map<String, Tests.Case> cases) {
+		cases.put("json.manifestRoundTrip", () -> {
+			Manifest manifest = Manifest.load(ManifestRulesTests.MANIFEST);
+			String json = JsonBinder.toJson(manifest);
+			Manifest again = Manifest.load(json);
+			checkEquals(json, JsonBinder.toJson(again), "written again");
+			checkEquals(1499550733L, again.timestamp, "timestamp");
+			checkEquals(2, again.modSpecs.length, "mods");
+			checkEquals("frames", again.modSpecs[0].valueSpecs[0].name, "value name");
+			checkEquals(2, again.modSpecs[0].valueSpecs[0].maxVal, "max");
+			check(!again.modSpecs[1].permitted, "permitted");
+			checkEquals("https://example.com/Test-1.0.hex", again.firmwareImages[0].url, "image url");
+			check(again.rules.mod("dash_back") != null, "rules are compiled");
+		});
+		cases.put("json.paramsRoundTrip", () -> {
+			Verifier.FirmwareParams params = new Verifier.FirmwareParams();
+			params.name = "Test";
+			params.major_version = 1;
+			params.minor_version = 2;
+			params.mods = new Verifier.FirmwareMod[]{ManifestRulesTests.mod("dash_back", true, "frames", 2, "other", -7)};
+			params.capabilities = new String[]{FlashDigest.CAPABILITY, FlashDump.CAPABILITY};
+			String json = JsonBinder.toJson(params);
+			Verifier.FirmwareParams again = JsonBinder.readFirmwareParams(json);
+			checkEquals(json, JsonBinder.toJson(again), "written again");
+			checkEquals("Test", again.name, "name");
+			checkEquals(2, again.minor_version, "minor version");
+			checkEquals(-7, again.mods[0].values[1].value, "value");
+			check(again.supports(FlashDump.CAPABILITY) && !again.supports("nope"), "capabilities");
+		});
+		cases.put("json.paramsDefaults", () -> {
+			Verifier.FirmwareParams params = JsonBinder.readFirmwareParams("{\"name\":null,\"extra\":{\"a\":[1,2]},\"mods\":[{\"name\":\"m\",\"values\":[{\"name\":\"v\"}]}]}");
+			checkEquals("", params.name, "a null name stays empty");
+			checkEquals(-1, params.major_version, "missing version");
+			check(!params.mods[0].enabled, "missing enabled");
+			checkEquals(Integer.MAX_VALUE, params.mods[0].values[0].value, "a missing value trips the range check");
+			checkEquals(0, params.capabilities.length, "missing capabilities");
+		});
+		cases.put("json.malformed", () -> {
+			checkThrows(JsonSyntaxException.class, () -> JsonBinder.readFirmwareParams(""), "empty");
+			checkThrows(JsonSyntaxException.class, () -> JsonBinder.readFirmwareParams("{\"name\":"), "truncated");
+			checkThrows(JsonSyntaxException.class, () -> JsonBinder.readFirmwareParams("{\"major_version\":\"one\"}"), "mistyped");
+			checkThrows(JsonSyntaxException.class, () -> JsonBinder.readFirmwareParams("[]"), "not an object");
+		});
+		cases.put("json.extensionAnswers", () -> {
+			checkEquals(0xDEADBEEFL, JsonBinder.readDigest("{\"digest\":\"DEADBEEF\"}"), "digest");
+			checkThrows(JsonSyntaxException.class, () -> JsonBinder.readDigest("{}"), "missing digest");
+			checkThrows(JsonSyntaxException.class, () -> JsonBinder.readDigest("{\"digest\":\"XYZ\"}"), "bad digest");
+			checkEquals(250000, JsonBinder.readDumpBaudRate("{\"baud\":250000}"), "baud");
+			checkEquals(0, JsonBinder.readDumpBaudRate("{\"other\":1}"), "no baud declines");
+		});
+	}
+
+}
@@ -0,0 +1,184 @@
+/**
+ * LibraryDownloaderTests.java runs library downloads against a local HTTP
+ * server into a scratch directory with its own hash index and image cache:
+ * conditional requests, hash mismatches, oversized images and stalled
+ * servers.
+ *
+ * Contains the LibraryDownloaderTests class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import static GCCVerify.Tests.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class LibraryDownloaderTests {
+
+	private static final byte[] IMAGE = HexImageTests.record(0, HexImage.DATA, 1, 2, 3, 4).concat(HexImageTests.eof()).getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] OLD_IMAGE = HexImageTests.record(0, HexImage.DATA, 1, 2).concat(HexImageTests.eof()).getBytes(StandardCharsets.US_ASCII);
+	private static final String ETAG = "\"v1\"";
+	private static final int STALL_MILLIS = 3000;
+
+	static void addTo(Map<String, Tests.Case> cases) {
+		cases.put("download.conditional", () -> {
+			try ( Fixture fixture = new Fixture() ) {
+				LibraryDownloader downloader = fixture.downloader(LibraryDownloader.DEFAULT_READ_TIMEOUT);
+				checkEquals(LibraryDownloader.Result.DOWNLOADED, downloader.download(fixture.path, fixture.url("/image"), sha256(IMAGE)), "first download");
+				check(Arrays.equals(IMAGE, Files.readAllBytes(fixture.path)), "downloaded contents");
+				checkEquals(ETAG, fixture.index.validators(fixture.path)[0], "recorded ETag");
+				checkEquals(LibraryDownloader.Result.NOT_MODIFIED, downloader.download(fixture.path, fixture.url("/image"), sha256(IMAGE)), "conditional retry");
+				checkEquals(1, fixture.notModified.get(), "304 responses");
+				//A copy that changed on disk is no longer the one the ETag describes, so it is fetched in full
+				Files.write(fixture.path, OLD_IMAGE);
+				checkEquals(LibraryDownloader.Result.DOWNLOADED, downloader.download(fixture.path, fixture.url("/image"), sha256(IMAGE)), "after a local change");
+				checkEquals(1, fixture.notModified.get(), "304 responses after a local change");
+				check(!Files.exists(fixture.part()), "no temporary file is left");
+			}
+		});
+		cases.put("download.hashMismatch", () -> {
+			try ( Fixture fixture = new Fixture() ) {
+				Files.write(fixture.path, OLD_IMAGE);
+				checkEquals(LibraryDownloader.Result.HASH_MISMATCH,
+							fixture.downloader(LibraryDownloader.DEFAULT_READ_TIMEOUT).download(fixture.path, fixture.url("/image"), sha256(OLD_IMAGE)), "result");
+				fixture.checkKept();
+			}
+		});
+		cases.put("download.tooLarge", () -> {
+			try ( Fixture fixture = new Fixture() ) {
+				Files.write(fixture.path, OLD_IMAGE);
+				checkEquals(LibraryDownloader.Result.FAILED,
+							fixture.downloader(LibraryDownloader.DEFAULT_READ_TIMEOUT).download(fixture.path, fixture.url("/large"), sha256(IMAGE)), "result");
+				fixture.checkKept();
+			}
+		});
+		cases.put("download.readTimeout", () -> {
+			try ( Fixture fixture = new Fixture() ) {
+				Files.write(fixture.path, OLD_IMAGE);
+				long start = System.currentTimeMillis();
+				checkEquals(LibraryDownloader.Result.FAILED, fixture.downloader(200).download(fixture.path, fixture.url("/stall"), sha256(IMAGE)), "result");
+				check(System.currentTimeMillis() - start < STALL_MILLIS, "gave up before the server finished");
+				fixture.checkKept();
+			}
+		});
+		cases.put("download.httpError", () -> {
+			try ( Fixture fixture = new Fixture() ) {
+				Files.write(fixture.path, OLD_IMAGE);
+				checkEquals(LibraryDownloader.Result.FAILED,
+							fixture.downloader(LibraryDownloader.DEFAULT_READ_TIMEOUT).download(fixture.path, fixture.url("/missing"), sha256(IMAGE)), "result");
+				fixture.checkKept();
+			}
+		});
+	}
+
+	private static String sha256(byte[] bytes) throws Exception {
+		return Verifier.bytesToHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+	}
+
+	//A scratch library directory and a local server for it to download from
+	private static class Fixture implements AutoCloseable {
+		final Path dir = Files.createTempDirectory("gccverify-test");
+		final Path path = dir.resolve("Test-1.0.hex");
+		final HashIndex index = new HashIndex(dir.resolve("hashes.idx"));
+		final AtomicInteger notModified = new AtomicInteger();
+		private final ExecutorService executor = Executors.newCachedThreadPool();
+		private final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+
+		Fixture() throws IOException {
+			server.setExecutor(executor);
+			server.createContext("/image", exchange -> {
+				exchange.getResponseHeaders().set("ETag", ETAG);
+				if ( ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match")) ) {
+					notModified.incrementAndGet();
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+				}
+				else
+					send(exchange, IMAGE);
+			});
+			server.createContext("/large", exchange -> send(exchange, new byte[LibraryDownloader.MAX_IMAGE_SIZE + 1]));
+			server.createContext("/stall", exchange -> {
+				exchange.sendResponseHeaders(200, 0);
+				exchange.getResponseBody().flush();
+				try {
+					Thread.sleep(STALL_MILLIS);
+				} catch ( InterruptedException e ) {}
+				exchange.close();
+			});
+			server.createContext("/missing", exchange -> {
+				exchange.sendResponseHeaders(404, -1);
+				exchange.close();
+			});
+			server.start();
+		}
+
+		LibraryDownloader downloader(int readTimeout) {
+			return new LibraryDownloader(index, new ImageCache(ImageCache.DEFAULT_MAX_BYTES), LibraryDownloader.DEFAULT_CONNECT_TIMEOUT, readTimeout);
+		}
+
+		String url(String path) {
+			return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+		}
+
+		Path part() {
+			return dir.resolve(path.getFileName() + ".part");
+		}
+
+		//A failed download removes its temporary file and leaves the library copy alone
+		void checkKept() throws IOException {
+			check(!Files.exists(part()), "temporary file removed");
+			check(Arrays.equals(OLD_IMAGE, Files.readAllBytes(path)), "existing file kept");
+		}
+
+		private static void send(HttpExchange exchange, byte[] body) throws IOException {
+			exchange.sendResponseHeaders(200, body.length);
+			try ( OutputStream out = exchange.getResponseBody() ) {
+				out.write(body);
+			} catch ( IOException e ) {
+				//The downloader may hang up early
+			}
+		}
+
+		public void close() throws IOException {
+			server.stop(0);
+			executor.shutdownNow();
+			try ( Stream<Path> files = Files.walk(dir) ) {
+				files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+			}
+		}
+	}
+
+}
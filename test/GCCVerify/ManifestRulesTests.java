@@ -0,0 +1,110 @@
+/**
+ * ManifestRulesTests.java checks the compiled manifest rules and the mod
+ * validation that runs against them: which reported mods and values pass,
+ * and what each kind of violation is reported as.
+ *
+ * Contains the ManifestRulesTests class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import static GCCVerify.Tests.*;
+
+import java.util.Map;
+
+public class ManifestRulesTests {
+
+	//dash_back allows frames 0-2; turbo is known but not permitted
+	static final String MANIFEST = "{\"timestamp\":1499550733," +
+		"\"modSpecs\":[" +
+		"{\"name\":\"dash_back\",\"permitted\":true,\"valueSpecs\":[{\"name\":\"frames\",\"maxVal\":2,\"minVal\":0}]}," +
+		"{\"name\":\"turbo\",\"permitted\":false,\"valueSpecs\":[]}]," +
+		"\"firmwareImages\":[{\"name\":\"Test-1.0\",\"permitted\":true,\"hash\":\"00\",\"url\":\"https://example.com/Test-1.0.hex\"}]}";
+
+	static void addTo(Map<String, Tests.Case> cases) {
+		cases.put("rules.lookup", () -> {
+			ManifestRules rules = rules();
+			check(rules.mod("dash_back") != null, "known mod");
+			check(rules.mod("nope") == null, "unknown mod");
+			check(!rules.mod("turbo").permitted, "turbo is not permitted");
+			ManifestRules.ModRule dashBack = rules.mod("dash_back");
+			checkEquals(-1, dashBack.valueIndex("nope"), "unknown value");
+			int frames = dashBack.valueIndex("frames");
+			checkEquals(0, dashBack.minVal(frames), "min");
+			checkEquals(2, dashBack.maxVal(frames), "max");
+			check(dashBack.inRange(frames, 0) && dashBack.inRange(frames, 2), "limits are inclusive");
+			check(!dashBack.inRange(frames, -1) && !dashBack.inRange(frames, 3), "outside the limits");
+			check(rules.image("Test-1.0") != null && rules.image("Test-2.0") == null, "image lookup");
+		});
+		cases.put("mods.allLegal", () -> {
+			Verifier.VerifyParamsResult result = Verifier.checkMods(new Verifier.FirmwareMod[]{mod("dash_back", true, "frames", 2), mod("turbo", false)}, rules());
+			check(result.succeeded, "legal values and a disabled unpermitted mod pass");
+			checkEquals(ModCheck.Verdict.OK, result.mods.get(1).verdict, "disabled unpermitted mod");
+			checkEquals(2, result.mods.get(0).values.get(0).maxVal, "limits are reported");
+		});
+		cases.put("mods.violations", () -> {
+			checkVerdict(mod("nope", true), ModCheck.Verdict.UNKNOWN_MOD);
+			checkVerdict(mod("turbo", true), ModCheck.Verdict.ILLEGAL_MOD);
+			checkVerdict(mod("dash_back", true, "frames", 3), ModCheck.Verdict.ILLEGAL_VALUES);
+			checkVerdict(mod("dash_back", true, "speed", 1), ModCheck.Verdict.UNKNOWN_VALUE);
+			//Disabling a mod doesn't excuse its values
+			checkVerdict(mod("dash_back", false, "frames", -1), ModCheck.Verdict.ILLEGAL_VALUES);
+		});
+		cases.put("mods.valueVerdicts", () -> {
+			ModCheck check = Verifier.checkMods(new Verifier.FirmwareMod[]{mod("dash_back", true, "frames", 9, "speed", 1)}, rules()).mods.get(0);
+			checkEquals(ModCheck.Verdict.ILLEGAL_VALUES, check.verdict, "out of range outranks unknown");
+			checkEquals(ModCheck.ValueCheck.Verdict.OUT_OF_RANGE, check.values.get(0).verdict, "frames");
+			checkEquals(ModCheck.ValueCheck.Verdict.UNKNOWN, check.values.get(1).verdict, "speed");
+			ModCheck unknown = Verifier.checkMods(new Verifier.FirmwareMod[]{mod("nope", true, "x", 1)}, rules()).mods.get(0);
+			checkEquals(ModCheck.ValueCheck.Verdict.UNCHECKED, unknown.values.get(0).verdict, "values of an unknown mod");
+		});
+		cases.put("mods.none", () -> {
+			Verifier.VerifyParamsResult result = Verifier.checkMods(new Verifier.FirmwareMod[]{new Verifier.FirmwareMod()}, rules());
+			check(result.succeeded && result.noMods, "a mod with no name means no mods");
+			result = Verifier.checkMods(new Verifier.FirmwareMod[]{}, rules());
+			check(result.succeeded && !result.noMods && result.mods.isEmpty(), "an empty list passes");
+		});
+	}
+
+	static ManifestRules rules() throws Exception {
+		return Manifest.load(MANIFEST).rules;
+	}
+
+	private static void checkVerdict(Verifier.FirmwareMod mod, ModCheck.Verdict verdict) throws Exception {
+		Verifier.VerifyParamsResult result = Verifier.checkMods(new Verifier.FirmwareMod[]{mod}, rules());
+		checkEquals(verdict, result.mods.get(0).verdict, mod.name);
+		check(!result.succeeded, mod.name + " fails the check");
+	}
+
+	//A reported mod with name/value pairs
+	static Verifier.FirmwareMod mod(String name, boolean enabled, Object... values) {
+		Verifier.FirmwareMod mod = new Verifier.FirmwareMod();
+		mod.name = name;
+		mod.enabled = enabled;
+		mod.values = new Verifier.FirmwareModValue[values.length / 2];
+		for ( int i = 0; i < mod.values.length; i++ ) {
+			mod.values[i] = new Verifier.FirmwareModValue();
+			mod.values[i].name = (String) values[2 * i];
+			mod.values[i].value = (Integer) values[2 * i + 1];
+		}
+		return mod;
+	}
+
+}
@@ -0,0 +1,61 @@
+/**
+ * TerminalTests.java checks how batch and watch mode resolve the -p port
+ * list against the attached ports.
+ *
+ * Contains the TerminalTests class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import static GCCVerify.Tests.*;
+
+import java.util.Arrays;
+import java.util.Map;
+
+public class TerminalTests {
+
+	private static final String[] ATTACHED = {"COM1", "COM3", "COM12", "/dev/ttyUSB0", "/dev/ttyUSB1", "/dev/ttyACM0"};
+
+	static void addTo(Map<String, Tests.Case> cases) {
+		cases.put("ports.wildcards", () -> {
+			checkPorts("*", ATTACHED);
+			checkPorts("COM*", "COM1", "COM3", "COM12");
+			checkPorts("COM?", "COM1", "COM3");
+			checkPorts("/dev/ttyUSB*,/dev/ttyACM?", "/dev/ttyUSB0", "/dev/ttyUSB1", "/dev/ttyACM0");
+			checkPorts("*USB1", "/dev/ttyUSB1");
+			checkPorts("LPT*");
+		});
+		cases.put("ports.literals", () -> {
+			checkPorts("COM9", "COM9");
+			checkPorts(" COM3 , ,COM1", "COM3", "COM1");
+			//Regex characters in a pattern are matched literally
+			checkPorts("COM.*");
+			checkPorts("COM[1]*");
+		});
+		cases.put("ports.duplicates", () -> {
+			checkPorts("COM1,COM?,COM*", "COM1", "COM3", "COM12");
+		});
+	}
+
+	private static void checkPorts(String spec, String... expected) {
+		checkEquals(Arrays.asList(expected), Arrays.asList(Terminal.matchPorts(spec, ATTACHED)), spec);
+	}
+
+}
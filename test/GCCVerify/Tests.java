@@ -0,0 +1,106 @@
+/**
+ * Tests.java runs the behaviour tests: small checks of the parts of a
+ * verification that can be exercised without hardware, from hex parsing and
+ * manifest rules to the flash extensions against an EmulatedController. Each
+ * test class adds its cases by name; a case passes if it returns and fails if
+ * it throws.
+ *
+ * Contains the Tests class
+ *
+ * Copyright (C) 2017 Aram Akhavan <kaysond@hotmail.com>
+ * https://github.com/kaysond/GCCVerify
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package GCCVerify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Tests {
+
+	public static interface Case {
+		void run() throws Exception;
+	}
+
+	//Usage: Tests [name filter...]
+	public static void main(String[] args) {
+		Map<String, Case> cases = new LinkedHashMap<String, Case>();
+		HexImageTests.addTo(cases);
+		ManifestRulesTests.addTo(cases);
+		JsonBinderTests.addTo(cases);
+		TerminalTests.addTo(cases);
+		HistogramTests.addTo(cases);
+		LibraryDownloaderTests.addTo(cases);
+		FlashTests.addTo(cases);
+
+		List<String> filters = Arrays.asList(args);
+		List<String> failed = new ArrayList<String>();
+		int run = 0;
+		for ( Map.Entry<String, Case> entry : cases.entrySet() ) {
+			if ( !matches(entry.getKey(), filters) )
+				continue;
+			run++;
+			try {
+				entry.getValue().run();
+				System.out.printf("PASS %s%n", entry.getKey());
+			} catch ( Throwable t ) {
+				failed.add(entry.getKey());
+				System.out.printf("FAIL %s: %s%n", entry.getKey(), t);
+				if ( !(t instanceof AssertionError) )
+					t.printStackTrace(System.out);
+			}
+		}
+		System.out.printf("%n%d of %d passed.%n", run - failed.size(), run);
+		System.exit(failed.isEmpty() ? 0 : 1);
+	}
+
+	private static boolean matches(String name, List<String> filters) {
+		if ( filters.isEmpty() )
+			return true;
+		for ( String filter : filters ) {
+			if ( name.contains(filter) )
+				return true;
+		}
+		return false;
+	}
+
+	public static void check(boolean condition, String message) {
+		if ( !condition )
+			throw new AssertionError(message);
+	}
+
+	public static void checkEquals(Object expected, Object actual, String what) {
+		if ( expected == null ? actual != null : !expected.equals(actual) )
+			throw new AssertionError(String.format("%s: expected %s, got %s", what, expected, actual));
+	}
+
+	//Runs code that must throw an exception of the given type
+	public static void checkThrows(Class<? extends Throwable> type, Case code, String what) {
+		try {
+			code.run();
+		} catch ( Throwable t ) {
+			if ( type.isInstance(t) )
+				return;
+			throw new AssertionError(String.format("%s: expected %s, got %s", what, type.getSimpleName(), t));
+		}
+		throw new AssertionError(String.format("%s: expected %s, nothing was thrown", what, type.getSimpleName()));
+	}
+
+}